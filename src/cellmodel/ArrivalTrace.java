@@ -0,0 +1,182 @@
+package cellmodel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/* ArrivalTrace
+ * A recorded log of cars arriving at the approaches of the roadcrossing.
+ * The file is memory-mapped window by window and read record by record,
+ * so a trace with millions of arrivals is never loaded into the heap.
+ *
+ * Two formats are supported. Records must be sorted by time.
+ *   CSV (any other extension): one arrival per line "time,approach", time in seconds.
+ *       The time has only digits and one '.', the approach only digits.
+ *       Empty lines and lines starting with a letter (a header) or '#' (a comment) are skipped,
+ *       any other line which is not "time,approach" throws TraceException.
+ *   binary (".bin"): 12 bytes per arrival, big-endian: double time in seconds, int approach.
+ */
+
+public class ArrivalTrace implements Closeable {
+
+	//size of a mapped window. A window is mapped again when the reader comes to its end
+	private static final long WINDOW = 64L * 1024 * 1024;
+	private static final int BINARY_RECORD = 12;
+
+	private final String path;
+	private final FileChannel channel;
+	private final boolean binary;
+	private final long size;
+
+	private MappedByteBuffer window;
+	private long windowStart;
+
+	//the current record
+	private double time;
+	private int approach;
+
+	public ArrivalTrace(String path) throws IOException {
+		this.path = path;
+		channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+		binary = path.endsWith(".bin");
+		size = channel.size();
+		map(0);
+	}
+
+	private void map(long position) throws IOException {
+		windowStart = position;
+		window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+	}
+
+	//read the next record. Returns false at the end of the trace
+	public boolean next() throws IOException {
+		return binary ? nextBinary() : nextCsv();
+	}
+
+	private boolean nextBinary() throws IOException {
+		if (window.remaining() < BINARY_RECORD) {
+			long position = windowStart + window.position();
+			if (size - position < BINARY_RECORD) {
+				return false;
+			}
+			map(position);
+		}
+		time = window.getDouble();
+		approach = window.getInt();
+		return true;
+	}
+
+	private boolean nextCsv() throws IOException {
+		while (true) {
+			int lineStart = window.position();
+			int lineEnd = findLineEnd(lineStart);
+
+			//a line is cut by the end of the window, map the window from the start of the line
+			if (lineEnd < 0) {
+				long position = windowStart + lineStart;
+				if (position >= size) {
+					return false;
+				}
+				if (windowStart + window.limit() < size) {
+					map(position);
+					continue;
+				}
+				lineEnd = window.limit();
+			}
+			window.position(Math.min(lineEnd + 1, window.limit()));
+
+			if (lineStart < lineEnd && !isSkipped(window.get(lineStart))) {
+				parseCsvLine(lineStart, lineEnd);
+				return true;
+			}
+		}
+	}
+
+	private static boolean isSkipped(byte first) {
+		return Character.isLetter(first) || first == '#' || first == '\r';
+	}
+
+	private int findLineEnd(int from) {
+		for (int i = from; i < window.limit(); i++) {
+			if (window.get(i) == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	//parse "time,approach" without making strings
+	//the time is read as an integer and divided by a power of ten, so it is the same double as in the binary format
+	private void parseCsvLine(int from, int to) {
+		//a line of a file written on windows
+		if (window.get(to - 1) == '\r') {
+			to--;
+		}
+
+		long digits = 0;
+		int timeDigits = 0;
+		double scale = 1;
+		boolean fraction = false;
+		int i = from;
+		for (; i < to && window.get(i) != ','; i++) {
+			byte c = window.get(i);
+			if (c == '.' && !fraction) {
+				fraction = true;
+			}
+			else if (c >= '0' && c <= '9') {
+				digits = digits * 10 + (c - '0');
+				timeDigits++;
+				if (fraction) {
+					scale *= 10;
+				}
+			}
+			else {
+				throw badLine(from, to);
+			}
+		}
+		if (timeDigits == 0 || i == to) {
+			throw badLine(from, to);
+		}
+		time = digits / scale;
+
+		int number = 0;
+		int approachDigits = 0;
+		for (i++; i < to; i++) {
+			byte c = window.get(i);
+			if (c < '0' || c > '9') {
+				throw badLine(from, to);
+			}
+			number = number * 10 + (c - '0');
+			approachDigits++;
+		}
+		if (approachDigits == 0) {
+			throw badLine(from, to);
+		}
+		approach = number;
+	}
+
+	private TraceException badLine(int from, int to) {
+		byte[] line = new byte[to - from];
+		for (int i = 0; i < line.length; i++) {
+			line[i] = window.get(from + i);
+		}
+		return new TraceException("Not \"time,approach\" at byte " + (windowStart + from) + " of " + path + ": "
+				+ new String(line, StandardCharsets.US_ASCII));
+	}
+
+	public double getTime() {
+		return time;
+	}
+
+	public int getApproach() {
+		return approach;
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,150 @@
+package cellmodel;
+
+import java.nio.IntBuffer;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/* BatchEnvironment
+ * Many grids with the same scenario driven by an external controller step by step
+ * instead of the Processing loop.
+ *
+ * Every grid writes its observation straight into one preallocated IntBuffer
+ * (a heap buffer or a memory-mapped file, see SharedMemoryEnvironment), nothing is copied afterwards.
+ * Observation of grid i starts at i * stride:
+ *   [0] 1 if the experiment of the grid was over in this step and a new one was started, otherwise 0
+ *   [1] timeDelay of this step (number of cars which didn't move)
+ *   [2...] CellularAutomaton.observe(): the traffic light state and occupancy of the approach lanes
+ *
+ * An action for a grid is 1 to switch the traffic light (RED or GREEN) and 0 to keep it.
+ */
+
+public class BatchEnvironment {
+
+	public static final int DONE = 0;
+	public static final int DELAY = 1;
+	public static final int STATE = 2;
+
+	private final Scenario scenario;
+	private final int totalCars;
+	private final CellularAutomaton[] grids;
+	private final Random[] seeds;
+	private final int[] lastDelay;
+
+	private final IntBuffer observations;
+	private final int stride;
+
+	//step the grids in parallel threads
+	private boolean parallel = false;
+
+	/* @count is number of grids
+	 * @totalCars is number of cars in every new experiment
+	 * @seed makes all the experiments repeatable
+	 */
+	public BatchEnvironment(Scenario scenario, int count, int totalCars, long seed) {
+		this(scenario, count, totalCars, seed, IntBuffer.allocate(count * stride(scenario)));
+	}
+
+	/* @observations is a buffer for count * stride(scenario) ints
+	 */
+	public BatchEnvironment(Scenario scenario, int count, int totalCars, long seed, IntBuffer observations) {
+		this.scenario = scenario;
+		this.totalCars = totalCars;
+		this.observations = observations;
+		stride = stride(scenario);
+		if (observations.capacity() < count * stride) {
+			throw new IllegalArgumentException("The observation buffer is too small: " + observations.capacity()
+					+ " < " + count * stride);
+		}
+
+		grids = new CellularAutomaton[count];
+		seeds = new Random[count];
+		lastDelay = new int[count];
+		for (int i = 0; i < count; i++) {
+			seeds[i] = new Random(seed + i);
+		}
+		reset();
+	}
+
+	//number of ints in the observation of one grid
+	public static int stride(Scenario scenario) {
+		return STATE + CellularAutomaton.observationSize(scenario.topology());
+	}
+
+	//start new experiments in all the grids. The grids are made in parallel threads
+	public void reset() {
+		long[] gridSeeds = new long[grids.length];
+		for (int i = 0; i < grids.length; i++) {
+			gridSeeds[i] = seeds[i].nextLong();
+		}
+		CellularAutomaton[] replicas = CellularAutomaton.createReplicas(scenario, totalCars, 0, 0, gridSeeds);
+		for (int i = 0; i < grids.length; i++) {
+			grids[i] = replicas[i];
+			grids[i].setExternalControl(true);
+			lastDelay[i] = 0;
+			observations.put(i * stride + DONE, 0);
+			observations.put(i * stride + DELAY, 0);
+			grids[i].observe(observations, i * stride + STATE);
+		}
+	}
+
+	private void reset(int i) {
+		grids[i] = new CellularAutomaton(scenario, totalCars, 0, 0, new Random(seeds[i].nextLong()), null);
+		grids[i].setExternalControl(true);
+		lastDelay[i] = 0;
+	}
+
+	/* Make one iteration in every grid.
+	 * @actions : actions.get(i) is the action for grid i
+	 */
+	public void step(IntBuffer actions) {
+		if (parallel) {
+			IntStream.range(0, grids.length).parallel().forEach(i -> step(i, actions.get(i)));
+		}
+		else {
+			for (int i = 0; i < grids.length; i++) {
+				step(i, actions.get(i));
+			}
+		}
+	}
+
+	public void step(int[] actions) {
+		step(IntBuffer.wrap(actions));
+	}
+
+	private void step(int i, int action) {
+		CellularAutomaton ca = grids[i];
+		if (action != 0) {
+			ca.requestSwitch();
+		}
+		ca.nextIteration();
+
+		int offset = i * stride;
+		observations.put(offset + DELAY, ca.timeDelay - lastDelay[i]);
+		lastDelay[i] = ca.timeDelay;
+
+		if (ca.stopped) {
+			reset(i);
+			observations.put(offset + DONE, 1);
+		}
+		else {
+			observations.put(offset + DONE, 0);
+		}
+		grids[i].observe(observations, offset + STATE);
+	}
+
+	public IntBuffer getObservations() {
+		return observations;
+	}
+
+	public int getStride() {
+		return stride;
+	}
+
+	public int size() {
+		return grids.length;
+	}
+
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+}
@@ -1,14 +1,17 @@
 package cellmodel;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.stream.IntStream;
 import processing.core.PApplet;
 
 
 /* CellularAutomaton
  * This project is for building a traffic flow model based on cellular automata.
  * 
- * nextIteration(), speedUp(), speedDown(), distanceToClosestObstacle(int, int) are methods
+ * nextIteration(), speedUp(), speedDown(), distanceToClosestObstacle(int) are methods
  * implementing the Nagel-Schrekenberg model 
  * 
  * There are the classic algorithm and adaptive algorithm (made by me) of controlling the traffic light.
@@ -20,24 +23,46 @@ import processing.core.PApplet;
  * Date: June 10, 2019
  */
 
-public class CellularAutomaton {
+public class CellularAutomaton implements TrafficEngine {
 
 	//SCALE is a length of a car
-	//VMAX is maximum speed of a car
+	//maximum speeds of vehicles are in VehicleType
 	//TIME_ORANGE_TRAFFIC_LIGHT is an orange time interval  
 	//TIME_RED_OR_GREEN_TRAFFIC_LIGHT is a red and a green time interval (for classic algorithm). 
-	private final int SCALE = 10;
-	private final int VMAX = 4;
+	static final int SCALE = 10;
 	private final int TIME_ORANGE_TRAFFIC_LIGHT = 2;
 	//This variable is only for the classic algorithm
 	private final int TIME_RED_OR_GREEN_TRAFFIC_LIGHT = 5;
+	//values() makes a new array on every call, the type column keeps ordinals of this one
+	private static final VehicleType[] TYPES = VehicleType.values();
 
 	//Define a grid by cell types (enum) with properties as directions, velocities, movePermissions.
-	//directions, velocities, movePermissions are necessary to cars
+	//directions and move permissions of lanes come from the compiled scenario (topology)
+	//move permissions of the roadcrossing depend on the traffic light: crossPermY, crossPermX
+	private LaneTopology topology;
 	private CellType[][] cells;
-	private Vector2D[][] directions;
-	private Vector2D[][] velocities;
-	private Vector2D[][] movePermissions;
+	private int crossPermY = 1;
+	private int crossPermX = 0;
+
+	//Vehicles are kept in columns indexed by the vehicle number (0 ... carCount - 1), not in cells.
+	//carAt[y * width + x] is the number of the vehicle in a cell, -1 if there is no vehicle.
+	//pos is the front cell of a vehicle, the other cells are behind it along heading.
+	//A car (length 1) uses the directions of its cell like before, longer vehicles move only along heading
+	private int carCount = 0;
+	private int[] carAt;
+	private int[] posY;
+	private int[] posX;
+	private int[] velY;
+	private int[] velX;
+	private int[] headingY;
+	private int[] headingX;
+	private int[] maxSpeed;
+	private int[] length;
+	private int[] acceleration;
+	private int[] type;
+	//for one iteration: the front cell before moving and vehicles which leave the grid or are run into
+	private int[] oldFront;
+	private boolean[] removed;
 
 	//start state of the traffic light is RED (enum) 
 	private TrafficLightStates trafficLightState = TrafficLightStates.RED;
@@ -60,24 +85,50 @@ public class CellularAutomaton {
 	//max cars in the grid
 	private int totalCars;
 
+	//recorded arrivals coming into the grid during the experiment, null if there are only totalCars
+	private TraceDemand demand;
+
+	//if an external controller drives the traffic light (see BatchEnvironment),
+	//it asks to switch the light instead of the adaptive algorithm
+	private boolean externalControl = false;
+	private boolean switchRequested = false;
+
+	//random places and speeds of cars
+	private Random rand;
+	private Fleet fleet;
+
 	//to use processing library tools
 	private PApplet p;
 
-	/* @totalCars is a maximum cars in the grid
+	/* @scenario is a road layout of the grid
+	 * @totalCars is a maximum cars in the grid
 	 * @power is one of the parameters of the adaptive algorithm
 	 * @treshold is one of the parameters of the adaptive algorithm
-	 * @p : PApplet is necessary for defining width and height of the screen available in PApplet
+	 * @p : PApplet is only used for displaying cells, it can be null
+	 */
+	CellularAutomaton(Scenario scenario, int totalCars, float power, double treshold, PApplet p) {
+		this(scenario, totalCars, power, treshold, new Random(), p);
+	}
+
+	/* @rand gives places and speeds of cars, a seeded one repeats the experiment
+	 */
+	CellularAutomaton(Scenario scenario, int totalCars, float power, double treshold, Random rand, PApplet p) {
+		this(scenario, totalCars, power, treshold, Fleet.CARS, rand, p);
+	}
+
+	/* @fleet gives the types of the vehicles placed at the start
 	 */
-	CellularAutomaton(int totalCars, float power, double treshold, PApplet p) {
+	CellularAutomaton(Scenario scenario, int totalCars, float power, double treshold, Fleet fleet, Random rand,
+			PApplet p) {
 		this.p = p;
+		this.rand = rand;
+		this.fleet = fleet;
 		
-		int height = p.height;
-		int width = p.width;
-		
-		cells = new CellType[height / SCALE][width / SCALE];
-		velocities = new Vector2D[height / SCALE][width / SCALE];
-		directions = new Vector2D[height / SCALE][width / SCALE];
-		movePermissions = new Vector2D[height / SCALE][width / SCALE];
+		topology = scenario.topology();
+		cells = new CellType[topology.height][];
+		carAt = new int[topology.height * topology.width];
+		Arrays.fill(carAt, -1);
+		allocateColumns(Math.max(totalCars, 16));
 		this.totalCars = totalCars;
 		this.power = power;
 		this.treshold = treshold;
@@ -89,101 +140,158 @@ public class CellularAutomaton {
 
 	//A method contains methods for filling the grid
 	public void filling() {
-		fillByWall();
-		fillByRoadHorizontal();
-		fillByRoadVertical();
-		fillByTrafficLight();
+		fillByScenario();
 		fillByCars();
 	}
 	
-	//fill the grid by the WALL(enum)
-	public void fillByWall() {
+	//copy walls, roads and the traffic light from the compiled scenario
+	//directions and move permissions are not copied, they are read from the topology
+	public void fillByScenario() {
 		for (int y = 0; y < cells.length; y++) {
-			for (int x = 0; x < cells[0].length; x++) {
-				cells[y][x] = CellType.WALL;
-				directions[y][x] = new Vector2D();
-				velocities[y][x] = new Vector2D();
-				movePermissions[y][x] = new Vector2D();
-			}
+			cells[y] = topology.cellTypes[y].clone();
 		}
 	}
-
-	// define an array by road in the horizontal way
-	public void fillByRoadHorizontal() {
-		for (int y = cells.length / 2 - 1; y < cells.length / 2 + 1; y++) {
-			for (int x = 0; x < cells[0].length; x++) {
-				cells[y][x] = CellType.ROAD;
-
-				if (y < cells.length / 2) {
-					directions[y][x].setSecond(1);
-				} else {
-					directions[y][x].setSecond(-1);
-				}
-				movePermissions[y][x] = new Vector2D(0, 1);
+	
+	//Add maximum cars (total cars) to the grid at random places. 
+	public void fillByCars() {
+		int[] roadCells = topology.roadCells.clone();
+		if (totalCars > roadCells.length) {
+			throw new IllegalArgumentException("There are " + roadCells.length + " road cells for " + totalCars + " cars");
+		}
+		
+		//Partial Fisher-Yates shuffle of the road cells (y * width + x):
+		//randomly get an index from the cells which are not taken yet and swap it with the first free one.
+		//The first totalCars cells get the cars, it takes totalCars steps
+		//A cell can already be taken by the back of a long vehicle, then the next one is tried.
+		//The sign of velocity is defined by multiplication by direction
+		int next = 0;
+		int carsPlaced = 0;
+		while (carsPlaced < totalCars) {
+			if (next == roadCells.length) {
+				throw new IllegalArgumentException("There is no place for " + totalCars + " vehicles");
 			}
+			VehicleType vehicle = fleet.pick(rand);
+			int index = next + rand.nextInt(roadCells.length - next);
+			int cell = roadCells[index];
+			roadCells[index] = roadCells[next];
+			roadCells[next++] = cell;
+
+			if (cells[cell / topology.width][cell % topology.width] != CellType.ROAD) {
+				continue;
+			}
+			//a long vehicle needs free cells behind it in the same lane, otherwise it is a car
+			if (!fits(cell, vehicle)) {
+				vehicle = VehicleType.CAR;
+			}
+
+			// (rand.nextInt(3) + 1) method gives random number from 0 to maxSpeed
+			int speed = (rand.nextInt(vehicle.maxSpeed) + 1);
+			addVehicle(cell, vehicle, speed);
+			carsPlaced++;
 		}
 	}
-	
-	// define an array by road in the horizontal way
-	public void fillByRoadVertical() {
-		for (int y = 0; y < cells.length; y++) {
-			for (int x = cells[0].length / 2 - 1; x < cells[0].length / 2 + 1; x++) {
-				cells[y][x] = CellType.ROAD;
 
-				if (x < cells.length / 2) {
-					directions[y][x].setFirst(-1);
-				} else {
-					directions[y][x].setFirst(1);
-				}
-				movePermissions[y][x] = new Vector2D(1, 0);
+	//check if a long vehicle with its front at the cell has free cells behind in the same lane
+	private boolean fits(int cell, VehicleType vehicle) {
+		if (vehicle.length == 1) {
+			return true;
+		}
+		int lane = topology.cellLane[cell];
+		if (lane < 0 || topology.lanePosition[cell] < vehicle.length - 1) {
+			return false;
+		}
+		int front = topology.laneOffset[lane] + topology.lanePosition[cell];
+		for (int k = 1; k < vehicle.length; k++) {
+			int back = topology.laneCells[front - k];
+			if (cells[back / topology.width][back % topology.width] != CellType.ROAD) {
+				return false;
 			}
 		}
+		return true;
 	}
 
-	//fill the traffic light near the crossing
-	public void fillByTrafficLight() {
-		for (int y = cells.length / 2 - 3; y < cells.length / 2 - 1; y++) {
-			for (int x = cells[0].length / 2 - 3; x < cells[0].length / 2 - 1; x++) {
-				cells[y][x] = CellType.TRAFFIC_LIGHT;
-			}
+	//put a vehicle into free cells. A car gets the directions of its cell, a long vehicle the direction of its lane
+	private void addVehicle(int cell, VehicleType vehicle, int speed) {
+		if (carCount == posY.length) {
+			allocateColumns(carCount * 2);
 		}
-	}
-	
-	//Add maximum cars (total cars) to the grid at random places. 
-	public void fillByCars() {
-		int carsPlaced = 0;
-		Random rand = new Random();
-		
-		//To implement this I used a list of Vector2D(class), where a cell is the ROAD. 
-		ArrayList<Vector2D> roadCells = new ArrayList<Vector2D>();
-		for (int y = 0; y < cells.length; y++) {
-			for (int x = 0; x < cells[0].length; x++) {
-				if (cells[y][x] == CellType.ROAD) {
-					roadCells.add(new Vector2D(y, x));
-				}
-			}
+		int id = carCount++;
+		int y = cell / topology.width;
+		int x = cell % topology.width;
+		int lane = topology.cellLane[cell];
+
+		posY[id] = y;
+		posX[id] = x;
+		headingY[id] = lane >= 0 ? topology.laneDirY[lane] : topology.dirY[y][x];
+		headingX[id] = lane >= 0 ? topology.laneDirX[lane] : topology.dirX[y][x];
+		maxSpeed[id] = vehicle.maxSpeed;
+		length[id] = vehicle.length;
+		acceleration[id] = vehicle.acceleration;
+		type[id] = vehicle.ordinal();
+		if (vehicle.length == 1) {
+			velY[id] = speed * topology.dirY[y][x];
+			velX[id] = speed * topology.dirX[y][x];
 		}
-		
-		//Randomly get an index (from 0 to size of the list). A car will be with this index
-		//To not add a car in the same place remove an object(Vector2D) from a list
-		//The sign of velocity is defined by multiplication by direction
-		while (carsPlaced < totalCars) {
-			int index = rand.nextInt(roadCells.size());
-			int y = roadCells.get(index).getFirst();
-			int x = roadCells.get(index).getSecond();
-			roadCells.remove(index);
+		else {
+			velY[id] = speed * headingY[id];
+			velX[id] = speed * headingX[id];
+		}
+		occupy(id);
+	}
 
-			cells[y][x] = CellType.CAR;
+	//(re)allocate the vehicle columns, they grow only if vehicles come from a trace
+	private void allocateColumns(int capacity) {
+		posY = columnOf(posY, capacity);
+		posX = columnOf(posX, capacity);
+		velY = columnOf(velY, capacity);
+		velX = columnOf(velX, capacity);
+		headingY = columnOf(headingY, capacity);
+		headingX = columnOf(headingX, capacity);
+		maxSpeed = columnOf(maxSpeed, capacity);
+		length = columnOf(length, capacity);
+		acceleration = columnOf(acceleration, capacity);
+		type = columnOf(type, capacity);
+		oldFront = columnOf(oldFront, capacity);
+		removed = new boolean[capacity];
+	}
 
-			// (rand.nextInt(3) + 1) method gives random number from 0 to VMAX
-			int speed = (rand.nextInt(VMAX) + 1);
-			velocities[y][x].setFirst(speed * directions[y][x].getFirst());
-			velocities[y][x].setSecond(speed * directions[y][x].getSecond());
+	private static int[] columnOf(int[] column, int capacity) {
+		return column == null ? new int[capacity] : Arrays.copyOf(column, capacity);
+	}
 
-			carsPlaced++;
-		}
+	//Make independent grids in parallel threads, grid i has cars placed by Random(@seeds[i])
+	public static CellularAutomaton[] createReplicas(Scenario scenario, int totalCars, float power, double treshold,
+			long[] seeds) {
+		//compile the scenario before the threads start
+		scenario.topology();
+		CellularAutomaton[] replicas = new CellularAutomaton[seeds.length];
+		IntStream.range(0, seeds.length).parallel().forEach(i -> replicas[i] =
+				new CellularAutomaton(scenario, totalCars, power, treshold, new Random(seeds[i]), null));
+		return replicas;
 	}
 	
+	//replay arrivals from a trace. The experiment doesn't stop until the trace is over
+	public void setDemand(TraceDemand demand) {
+		this.demand = demand;
+	}
+
+	//close the trace file of the demand if there is one
+	public void closeDemand() throws IOException {
+		if (demand != null) {
+			demand.close();
+		}
+	}
+
+	//put a car with the maximum speed into a free road cell (y * width + x)
+	//returns false if the cell is not free
+	public boolean addCar(int cell) {
+		if (cells[cell / topology.width][cell % topology.width] != CellType.ROAD) {
+			return false;
+		}
+		addVehicle(cell, VehicleType.CAR, VehicleType.CAR.maxSpeed);
+		return true;
+	}
+
 	//Draw cells with processing library
 	public void displayCells() {
 
@@ -210,7 +318,17 @@ public class CellularAutomaton {
 					}
 				} 
 				else if (cells[y][x] == CellType.CAR) {
-					p.fill(0, 0, 255);
+					switch (TYPES[type[carAt[y * topology.width + x]]]) {
+					case CAR:
+						p.fill(0, 0, 255);
+						break;
+					case TRUCK:
+						p.fill(128, 0, 128);
+						break;
+					case BUS:
+						p.fill(0, 128, 128);
+						break;
+					}
 				} 
 				else {
 					throw new java.lang.Error("cell[y][x] == ?");
@@ -223,42 +341,26 @@ public class CellularAutomaton {
 	// This method and all methods which this method calls use Nagel-Schrekenberg model
 	// This method creates an updated grid of cells. Updating is based on rules of NS-model
 	public void nextIteration() {
+
+		//cars from the trace come into the grid
+		if (demand != null) {
+			try {
+				demand.inject(this);
+			}
+			catch (IOException e) {
+				throw new TraceException("Can't read the arrival trace", e);
+			}
+			//cars waiting outside of the grid don't move either
+			timeDelay += demand.getWaiting();
+		}
 		
 		//A car speeds down if there is another car in front of it or the traffic light forbids to move further  
 		//A car speeds up if there is no obstacle in front of it
 		speedUp();
 		speedDown();
 
-		//Initialization a grid of cells without any car to not save previous states
-		CellType[][] nextCells = initNextCells();
-		Vector2D[][] nextVelocities = initNextVelocities();
-
-		//change positions of cars according to their velocities
-		//write new positions and new velocities of cars to the updated grid of cells  
-		for (int y = 0; y < cells.length; y++) {
-			for (int x = 0; x < cells[0].length; x++) {
-				if (cells[y][x] == CellType.CAR) {
-					int speedY = velocities[y][x].getFirst();
-					int speedX = velocities[y][x].getSecond();
-
-					//for scientific purpose let's count every car which doesn't move
-					if (speedX == 0 && speedY == 0) {
-						timeDelay++;
-					}
-					
-					// dont't forget about bounds when car move beyond the screen
-					if ( (y + speedY) < cells.length && (x + speedX) < cells[0].length 
-							&& (y + speedY) >= 0 && (x + speedX) >= 0 ) {
-						//write new positions and new velocities of cars to the updated grid of cells
-						nextCells[y + speedY][x + speedX] = CellType.CAR;
-						nextVelocities[y + speedY][x + speedX] = velocities[y][x];
-					}
-				}
-			}
-		}
-		//this updated grid becomes the present grid
-		cells = nextCells;
-		velocities = nextVelocities;
+		//change positions of vehicles according to their velocities
+		moveVehicles();
 
 		//Iteration is each update of the grid of cells. We count it
 		numberOfIterations++;
@@ -270,32 +372,135 @@ public class CellularAutomaton {
 		checkCarsAndTime();
 	}
 
-	//Initialization a new grid without any car
-	private CellType[][] initNextCells() {
-		CellType[][] nextCells = new CellType[p.height / SCALE][p.width / SCALE];
-		for (int y = 0; y < cells.length; y++) {
-			for (int x = 0; x < cells[0].length; x++) {
-				switch (cells[y][x]) {
-					case CAR:
-						nextCells[y][x] = CellType.ROAD;
-						break;
-					default:
-						nextCells[y][x] = cells[y][x];
+	//Move every vehicle in the same grid: free all the cells of vehicles, move the fronts, take the cells again.
+	//If two vehicles come into the same cell, the one which was further (by y, then by x) stays
+	//like the last written car of the old grid. Vehicles which leave the grid are removed
+	private void moveVehicles() {
+		for (int id = 0; id < carCount; id++) {
+			//for scientific purpose let's count every car which doesn't move
+			if (velX[id] == 0 && velY[id] == 0) {
+				timeDelay++;
+			}
+			free(id);
+		}
+
+		for (int id = 0; id < carCount; id++) {
+			oldFront[id] = inside(posY[id], posX[id]) ? posY[id] * topology.width + posX[id] : -1;
+			posY[id] += velY[id];
+			posX[id] += velX[id];
+			removed[id] = false;
+
+			// dont't forget about bounds when car move beyond the screen
+			if (!inside(posY[id] - (length[id] - 1) * headingY[id], posX[id] - (length[id] - 1) * headingX[id])) {
+				removed[id] = true;
+			}
+			else {
+				claim(id);
+			}
+		}
+
+		//the last vehicle takes the number of a removed one
+		for (int id = 0; id < carCount;) {
+			if (removed[id]) {
+				release(id);
+				carCount--;
+				if (id != carCount) {
+					moveColumns(carCount, id);
 				}
+				//check the moved vehicle too
+				continue;
 			}
+			id++;
+		}
+
+		for (int id = 0; id < carCount; id++) {
+			occupy(id);
 		}
-		return nextCells;
 	}
-	
-	//Initialization a new velocities with zero values
-	private Vector2D[][] initNextVelocities() {
-		Vector2D[][] nextVelocities = new Vector2D[p.height / SCALE][p.width / SCALE];
-		for (int y = 0; y < cells.length; y++) {
-			for (int x = 0; x < cells[0].length; x++) {
-				nextVelocities[y][x] = new Vector2D();
+
+	//take the cells of a vehicle in carAt. If a cell is taken by another vehicle, one of them is removed
+	private void claim(int id) {
+		for (int k = 0; k < length[id]; k++) {
+			int y = posY[id] - k * headingY[id];
+			int x = posX[id] - k * headingX[id];
+			if (!inside(y, x)) {
+				continue;
+			}
+			int cell = y * topology.width + x;
+			int other = carAt[cell];
+			if (other < 0 || oldFront[other] < oldFront[id]) {
+				if (other >= 0) {
+					removed[other] = true;
+				}
+				carAt[cell] = id;
+			}
+			else {
+				removed[id] = true;
+				return;
+			}
+		}
+	}
+
+	//give back the cells which a removed vehicle has taken
+	private void release(int id) {
+		for (int k = 0; k < length[id]; k++) {
+			int y = posY[id] - k * headingY[id];
+			int x = posX[id] - k * headingX[id];
+			if (inside(y, x) && carAt[y * topology.width + x] == id) {
+				carAt[y * topology.width + x] = -1;
+			}
+		}
+	}
+
+	//copy a vehicle from one number to another
+	private void moveColumns(int from, int to) {
+		posY[to] = posY[from];
+		posX[to] = posX[from];
+		velY[to] = velY[from];
+		velX[to] = velX[from];
+		headingY[to] = headingY[from];
+		headingX[to] = headingX[from];
+		maxSpeed[to] = maxSpeed[from];
+		length[to] = length[from];
+		acceleration[to] = acceleration[from];
+		type[to] = type[from];
+		oldFront[to] = oldFront[from];
+		removed[to] = removed[from];
+		for (int k = 0; k < length[to]; k++) {
+			int y = posY[to] - k * headingY[to];
+			int x = posX[to] - k * headingX[to];
+			if (inside(y, x) && carAt[y * topology.width + x] == from) {
+				carAt[y * topology.width + x] = to;
+			}
+		}
+	}
+
+	//mark the cells of a vehicle as CAR
+	private void occupy(int id) {
+		for (int k = 0; k < length[id]; k++) {
+			int y = posY[id] - k * headingY[id];
+			int x = posX[id] - k * headingX[id];
+			if (inside(y, x)) {
+				cells[y][x] = CellType.CAR;
+				carAt[y * topology.width + x] = id;
+			}
+		}
+	}
+
+	//mark the cells of a vehicle as ROAD
+	private void free(int id) {
+		for (int k = 0; k < length[id]; k++) {
+			int y = posY[id] - k * headingY[id];
+			int x = posX[id] - k * headingX[id];
+			if (inside(y, x)) {
+				cells[y][x] = CellType.ROAD;
+				carAt[y * topology.width + x] = -1;
 			}
 		}
-		return nextVelocities;
+	}
+
+	private boolean inside(int y, int x) {
+		return y >= 0 && y < cells.length && x >= 0 && x < cells[0].length;
 	}
 
 	//Classic algorithm switch the traffic light state after the definite time interval
@@ -325,40 +530,25 @@ public class CellularAutomaton {
 		double fh = 0;
 		double fv = 0;
 
-		//height and width
-		int H = cells.length; 
-		int L = cells[0].length; 
-
-		//Horizontal
-		//from left to the center
-		for (int x = 0; x < L / 2 - 1; x++) {
-			if (cells[H / 2 - 1][x] == CellType.CAR) {
-				int distance = (L / 2 - 1) - x;
-				//here we calculate the weight along the horizontal line
-				fh += Math.pow((float) 1 / distance, power);
-			}
-		}
-		//from tight to the center
-		for (int x = L / 2 + 1; x < L; x++) {
-			if (cells[H / 2][x] == CellType.CAR) {
-				int distance = x - L / 2;
-				fh += Math.pow((float) 1 / distance, power);
-			}
-		}
-		// Vertical
-		//from top to the center
-		for (int y = 0; y < H / 2 - 1; y++) {
-			if (cells[y][L / 2] == CellType.CAR) {
-				int distance = (H / 2 - 1) - y;
-				fv += Math.pow((float) 1 / distance, power);
+		//the approach lanes are taken from the topology.
+		//The distance of the stop line is 1, the distance of the cell before it is 2, etc
+		for (int lane = 0; lane < topology.laneCount; lane++) {
+			if (topology.laneStopLine[lane] < 0) {
+				continue;
 			}
-		}
-		//from bottom to the center
-		for (int y = H / 2 + 1; y < H; y++) {
-			if (cells[y][L / 2 - 1] == CellType.CAR) {
-				int distance = y - H / 2;
-				//here we calculate the weight along the vertical line
-				fv += Math.pow((float) 1 / distance, power);
+			int stopLine = topology.laneOffset[lane + 1] - 1;
+			for (int i = topology.laneOffset[lane]; i <= stopLine; i++) {
+				int cell = topology.laneCells[i];
+				if (cells[cell / topology.width][cell % topology.width] == CellType.CAR) {
+					int distance = stopLine - i + 1;
+					//here we calculate the weight along the horizontal or the vertical line
+					if (topology.laneDirX[lane] != 0) {
+						fh += Math.pow((float) 1 / distance, power);
+					}
+					else {
+						fv += Math.pow((float) 1 / distance, power);
+					}
+				}
 			}
 		}
 	
@@ -389,10 +579,79 @@ public class CellularAutomaton {
 
 	//choose what kind of algorithm of the traffic light control you want to try
 	public void chooseTrafficLightMode() {
+		if (externalControl) {
+			externalAlg();
+			return;
+		}
 		//classicAlg();
 		adaptiveAlg();
 	}
 
+	//An external controller switches RED and GREEN, the orange states last the usual time
+	private void externalAlg() {
+		switch (trafficLightState) {
+		case RED:
+		case GREEN:
+			if (switchRequested) {
+				switchTrafficLight();
+				numberOfIterations = 0;
+			}
+			break;
+
+		case RED_TO_GREEN:
+		case GREEN_TO_RED:
+			if (numberOfIterations >= TIME_ORANGE_TRAFFIC_LIGHT) {
+				switchTrafficLight();
+				numberOfIterations = 0;
+			}
+			break;
+		}
+		switchRequested = false;
+	}
+
+	//the traffic light is controlled by requestSwitch() instead of the adaptive algorithm
+	public void setExternalControl(boolean externalControl) {
+		this.externalControl = externalControl;
+	}
+
+	//switch RED or GREEN in the next iteration (it is ignored in the orange states)
+	public void requestSwitch() {
+		switchRequested = true;
+	}
+
+	public TrafficLightStates getTrafficLightState() {
+		return trafficLightState;
+	}
+
+	/* Write the traffic light state and occupancy of the approach lanes into a buffer
+	 * starting from @offset: the state (ordinal of TrafficLightStates), then 1 for a car and 0 for a free cell
+	 * for every cell of every approach lane, from the stop line to the entrance.
+	 * It writes observationSize(topology) ints.
+	 */
+	public void observe(IntBuffer buffer, int offset) {
+		int i = offset;
+		buffer.put(i++, trafficLightState.ordinal());
+		for (int lane = 0; lane < topology.laneCount; lane++) {
+			if (topology.laneStopLine[lane] < 0) {
+				continue;
+			}
+			for (int c = topology.laneOffset[lane + 1] - 1; c >= topology.laneOffset[lane]; c--) {
+				int cell = topology.laneCells[c];
+				buffer.put(i++, cells[cell / topology.width][cell % topology.width] == CellType.CAR ? 1 : 0);
+			}
+		}
+	}
+
+	public static int observationSize(LaneTopology topology) {
+		int size = 1;
+		for (int lane = 0; lane < topology.laneCount; lane++) {
+			if (topology.laneStopLine[lane] >= 0) {
+				size += topology.laneOffset[lane + 1] - topology.laneOffset[lane];
+			}
+		}
+		return size;
+	}
+
 	//Change move permissions with changing the traffic light state 
 	private void switchTrafficLight() {
 		int yPermission = 0;
@@ -415,93 +674,126 @@ public class CellularAutomaton {
 			break;
 		}
 
-		for (int y = cells.length / 2 - 1; y < cells.length / 2 + 1; y++) {
-			for (int x = cells[0].length / 2 - 1; x < cells[0].length / 2 + 1; x++) {
-				movePermissions[y][x] = new Vector2D(yPermission, xPermission);
-			}
-		}
+		//the permissions are the same for every cell of the roadcrossing
+		crossPermY = yPermission;
+		crossPermX = xPermission;
+	}
+
+	//move permissions of a cell. Lanes have the fixed ones, the roadcrossing has the traffic light ones
+	private int movePermissionY(int y, int x) {
+		return topology.crossing[y][x] ? crossPermY : topology.permY[y][x];
 	}
 
-	// if the velocit of a car is less VMAX, the car speeds up
+	private int movePermissionX(int y, int x) {
+		return topology.crossing[y][x] ? crossPermX : topology.permX[y][x];
+	}
+
+	// if the velocity of a vehicle is less than its maximum speed, the vehicle speeds up
 	private void speedUp() {
-		for (int y = 0; y < cells.length; y++) {
-			for (int x = 0; x < cells[0].length; x++) {
+		for (int id = 0; id < carCount; id++) {
+			int y = posY[id];
+			int x = posX[id];
+			//a long vehicle which is leaving the grid keeps its speed
+			if (!inside(y, x)) {
+				continue;
+			}
 
-				//multiplication by movePermissions allows to move through the center
-				int dirY = directions[y][x].getFirst() * movePermissions[y][x].getFirst();
-				int dirX = directions[y][x].getSecond() * movePermissions[y][x].getSecond();
-				
-				//to not make it difficult, let's get the absolute velocity
-				int absVelocityY = Math.abs(velocities[y][x].getFirst());
-				int absVelocityX = Math.abs(velocities[y][x].getSecond());
-
-				//along Y-axis (vertical)
-				if (dirY > 0 && absVelocityY < VMAX) {
-					velocities[y][x].setFirst(velocities[y][x].getFirst() + 1);
-				} 
-				else if (dirY < 0 && absVelocityY < VMAX) {
-					velocities[y][x].setFirst(velocities[y][x].getFirst() - 1);
-				}
-				else {
-					throw new java.lang.Error("What the value of dirY?");
-				}
-				
-				//along X-axis (horizontal)
-				if (dirX > 0 && absVelocityX < VMAX) {
-					velocities[y][x].setSecond(velocities[y][x].getSecond() + 1);
-				} 
-				else if (dirX < 0 && absVelocityX < VMAX) {
-					velocities[y][x].setSecond(velocities[y][x].getSecond() - 1);
-				}
-				else {
-					throw new java.lang.Error("What the value of dirX?");
-				}
+			//multiplication by movePermissions allows to move through the center
+			int dirY = topology.dirY[y][x] * movePermissionY(y, x);
+			int dirX = topology.dirX[y][x] * movePermissionX(y, x);
+
+			//long vehicles don't turn, they move only along their heading
+			if (length[id] > 1) {
+				dirY *= Math.abs(headingY[id]);
+				dirX *= Math.abs(headingX[id]);
+			}
+			
+			//to not make it difficult, let's get the absolute velocity
+			int absVelocityY = Math.abs(velY[id]);
+			int absVelocityX = Math.abs(velX[id]);
+
+			//along Y-axis (vertical)
+			if (dirY > 0 && absVelocityY < maxSpeed[id]) {
+				velY[id] = Math.min(velY[id] + acceleration[id], maxSpeed[id]);
+			} 
+			else if (dirY < 0 && absVelocityY < maxSpeed[id]) {
+				velY[id] = Math.max(velY[id] - acceleration[id], -maxSpeed[id]);
+			}
+			
+			//along X-axis (horizontal)
+			if (dirX > 0 && absVelocityX < maxSpeed[id]) {
+				velX[id] = Math.min(velX[id] + acceleration[id], maxSpeed[id]);
+			} 
+			else if (dirX < 0 && absVelocityX < maxSpeed[id]) {
+				velX[id] = Math.max(velX[id] - acceleration[id], -maxSpeed[id]);
 			}
 		}
 	}
 
-	//if there is an obstacle in front of a car, the car speeds down
+	//if there is an obstacle in front of a vehicle, the vehicle speeds down
 	private void speedDown() {
-		for (int y = 0; y < cells.length; y++) {
-			for (int x = 0; x < cells[0].length; x++) {
-				if (cells[y][x] == CellType.CAR) {
-					
-					if (directions[y][x].getFirst() > 0
-							&& velocities[y][x].getFirst() > distanceToClosestObstacle(y, x)) {
-						
-						velocities[y][x].setFirst(distanceToClosestObstacle(y, x));
-					} 
-					else if (directions[y][x].getFirst() < 0
-							&& velocities[y][x].getFirst() < (-distanceToClosestObstacle(y, x))) {
-						
-						velocities[y][x].setFirst(-distanceToClosestObstacle(y, x));
-					} 
-					else if (directions[y][x].getSecond() > 0
-							&& velocities[y][x].getSecond() > distanceToClosestObstacle(y, x)) {
-						
-						velocities[y][x].setSecond(distanceToClosestObstacle(y, x));
-					} 
-					else if (directions[y][x].getSecond() < 0
-							&& velocities[y][x].getSecond() < (-distanceToClosestObstacle(y, x))) {
-						
-						velocities[y][x].setSecond(-distanceToClosestObstacle(y, x));
-					}
-					else {
-						throw new java.lang.Error("speedDown?");
-					}
-				}
+		for (int id = 0; id < carCount; id++) {
+			int y = posY[id];
+			int x = posX[id];
+			if (!inside(y, x)) {
+				continue;
+			}
+			int distance = distanceToClosestObstacle(id);
+
+			if (topology.dirY[y][x] > 0 && velY[id] > distance) {
+				velY[id] = distance;
+			} 
+			else if (topology.dirY[y][x] < 0 && velY[id] < -distance) {
+				velY[id] = -distance;
+			} 
+			else if (topology.dirX[y][x] > 0 && velX[id] > distance) {
+				velX[id] = distance;
+			} 
+			else if (topology.dirX[y][x] < 0 && velX[id] < -distance) {
+				velX[id] = -distance;
+			}
+
+			if (length[id] > 1) {
+				keepCrossingClear(id);
 			}
 		}
 	}
+
+	//A long vehicle doesn't go over the stop line if there is no place for all of it behind the roadcrossing,
+	//otherwise its back would stay in the roadcrossing and block the other road
+	private void keepCrossingClear(int id) {
+		int cell = posY[id] * topology.width + posX[id];
+		int lane = topology.cellLane[cell];
+		if (lane < 0 || topology.laneStopLine[lane] < 0 || topology.laneSuccessor[lane] < 0) {
+			return;
+		}
+		int toStopLine = topology.laneOffset[lane + 1] - 1 - topology.laneOffset[lane] - topology.lanePosition[cell];
+		int speed = Math.abs(velY[id]) + Math.abs(velX[id]);
+		if (speed <= toStopLine) {
+			return;
+		}
+
+		int after = topology.laneSuccessor[lane];
+		int afterLength = topology.laneOffset[after + 1] - topology.laneOffset[after];
+		boolean clear = afterLength >= length[id];
+		for (int k = 0; k < length[id] && k < afterLength && clear; k++) {
+			int next = topology.laneCells[topology.laneOffset[after] + k];
+			clear = cells[next / topology.width][next % topology.width] == CellType.ROAD;
+		}
+		if (!clear) {
+			velY[id] = toStopLine * headingY[id];
+			velX[id] = toStopLine * headingX[id];
+		}
+	}
 	
 	
 	/*
-	 * Finding the distance to an obstacle in front of a car. 
+	 * Finding the distance to an obstacle in front of a vehicle. 
 	 * An obstacle can be another car, a wall, the bounds of the screen, prohibition to move further (movePermision == 0).
-	 * @carY and @carX are the coordinate of the car
+	 * @id is the number of the vehicle, the search starts from its front cell
 	 * 
 	 */
-	private int distanceToClosestObstacle(int carY, int carX) {
+	private int distanceToClosestObstacle(int id) {
 		//anyway we enter the loop, that's why -1
 		int distance = -1;
 		
@@ -509,10 +801,12 @@ public class CellularAutomaton {
 		//if the value is positive, it returns 1,
 		//negative, it returns -1
 		//0, it returns 0
-		int sgnVelocityY = Integer.signum(velocities[carY][carX].getFirst());
-		int sgnVelocityX = Integer.signum(velocities[carY][carX].getSecond());
+		int sgnVelocityY = Integer.signum(velY[id]);
+		int sgnVelocityX = Integer.signum(velX[id]);
 
 		//coordinates which will be used to find the closest obstacle
+		int carY = posY[id];
+		int carX = posX[id];
 		int y = carY;
 		int x = carX;
 		
@@ -531,10 +825,10 @@ public class CellularAutomaton {
 			}
 
 			//the center is prohibited to cross
-			if (sgnVelocityY != 0 && movePermissions[carY][carX].getFirst() != 0
-					&& movePermissions[y][x].getFirst() == 0
-					|| sgnVelocityX != 0 && movePermissions[carY][carX].getSecond() != 0
-							&& movePermissions[y][x].getSecond() == 0) {
+			if (sgnVelocityY != 0 && movePermissionY(carY, carX) != 0
+					&& movePermissionY(y, x) == 0
+					|| sgnVelocityX != 0 && movePermissionX(carY, carX) != 0
+							&& movePermissionX(y, x) == 0) {
 
 				obstacleFound = true;
 			}
@@ -552,27 +846,38 @@ public class CellularAutomaton {
 		return distance;
 	}
 
-	//if there in no cars on the grid, stopped = true.
-	//It helps to initialize a new grid with a different numbers of cars
-	public void checkCarsAndTime() {
-		//number of iterations required to get rid of cars on the grid
-		overallTime++;
+	public boolean isStopped() {
+		return stopped;
+	}
 
-		boolean thereAreCars = false;
+	//the whole state for DifferentialCheck (see TrafficEngine)
+	public void snapshot(int[] state) {
+		int i = 0;
 		for (int y = 0; y < cells.length; y++) {
 			for (int x = 0; x < cells[0].length; x++) {
 				if (cells[y][x] == CellType.CAR) {
-					thereAreCars = true;
-					break;
+					int id = carAt[i];
+					int part = Math.max(Math.abs(posY[id] - y), Math.abs(posX[id] - x));
+					state[i++] = TrafficEngine.carCode(type[id], part, velY[id], velX[id]);
+				}
+				else {
+					state[i++] = 0;
 				}
-			}
-
-			if (thereAreCars) {
-				break;
 			}
 		}
+		state[i] = trafficLightState.ordinal();
+	}
+
+	//if there in no cars on the grid, stopped = true.
+	//It helps to initialize a new grid with a different numbers of cars
+	public void checkCarsAndTime() {
+		//number of iterations required to get rid of cars on the grid
+		overallTime++;
+
+		//a vehicle is removed as soon as all of it leaves the grid
+		boolean thereAreCars = carCount > 0;
 
-		if (!thereAreCars) {
+		if (!thereAreCars && (demand == null || demand.finished())) {
 			stopped = true;
 		}
 	}
@@ -0,0 +1,193 @@
+package cellmodel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* DifferentialCheck
+ * Proves that an engine follows the rules of CellularAutomaton, with all their odd cases
+ * (distanceToClosestObstacle(), switchTrafficLight(), diagonal moves in the roadcrossing, cars leaving the grid,
+ * long vehicles waiting before the stop line).
+ *
+ * record: run CellularAutomaton for many seeds, densities and FLEETS and keep the hashes in a golden trace.
+ *   A case without place for all its vehicles is skipped
+ *   java cellmodel.DifferentialCheck record <golden file> <seeds> <totalCars,totalCars,...> [scenario file]
+ * verify: run an engine (CellularAutomaton if no factory class is given) with the same cases in parallel threads
+ *   and report the first iteration and the first cell where it goes another way
+ *   java cellmodel.DifferentialCheck verify <golden file> [factory class] [threads] [scenario file]
+ */
+
+public class DifferentialCheck {
+
+	//power and treshold of GridOfCells
+	public static final float POWER = 0.8f;
+	public static final double TRESHOLD = 5;
+
+	//only cars, and a mix with trucks and buses for the rules of long vehicles
+	public static final Fleet[] FLEETS = { Fleet.CARS, new Fleet(0.7, 0.2, 0.1) };
+
+	//the reference engine
+	public static final TrafficEngine.Factory REFERENCE = (scenario, totalCars, power, treshold, fleet,
+			seed) -> new CellularAutomaton(scenario, totalCars, power, treshold, fleet, new Random(seed), null);
+
+	public static GoldenTrace record(Scenario scenario, int seeds, int[] cars) {
+		GoldenTrace golden = new GoldenTrace(scenario.getHeight(), scenario.getWidth(), POWER, TRESHOLD);
+		for (Fleet fleet : FLEETS) {
+			for (int totalCars : cars) {
+				for (long seed = 0; seed < seeds; seed++) {
+					TrafficEngine engine;
+					try {
+						engine = REFERENCE.create(scenario, totalCars, POWER, TRESHOLD, fleet, seed);
+					}
+					catch (IllegalArgumentException e) {
+						continue;
+					}
+					golden.cases.add(new GoldenTrace.Case(seed, totalCars, fleet,
+							GoldenTrace.run(engine, scenario.topology(), null)));
+				}
+			}
+		}
+		return golden;
+	}
+
+	/* Check every case of @golden with the engine of @factory in @threads threads.
+	 * Returns a description of every divergence, it is empty if the engine is the same as the reference
+	 */
+	public static ArrayList<String> verify(GoldenTrace golden, Scenario scenario, TrafficEngine.Factory factory,
+			int threads) throws Exception {
+		if (golden.height != scenario.getHeight() || golden.width != scenario.getWidth()) {
+			throw new IllegalArgumentException("The golden trace was recorded for another scenario");
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			ArrayList<Future<String>> results = new ArrayList<Future<String>>();
+			for (GoldenTrace.Case c : golden.cases) {
+				results.add(executor.submit(() -> verify(golden, c, scenario, factory)));
+			}
+			ArrayList<String> divergences = new ArrayList<String>();
+			for (Future<String> result : results) {
+				if (result.get() != null) {
+					divergences.add(result.get());
+				}
+			}
+			return divergences;
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	//null if the case is the same
+	private static String verify(GoldenTrace golden, GoldenTrace.Case c, Scenario scenario,
+			TrafficEngine.Factory factory) {
+		LaneTopology topology = scenario.topology();
+		TrafficEngine engine = factory.create(scenario, c.totalCars, golden.power, golden.treshold, c.fleet, c.seed);
+		long[] hashes = GoldenTrace.run(engine, topology, c.hashes);
+		if (hashes.length == c.hashes.length && hashes[hashes.length - 1] == c.hashes[c.hashes.length - 1]) {
+			return null;
+		}
+
+		//the first different iteration
+		int iteration = 0;
+		while (iteration < hashes.length && iteration < c.hashes.length && hashes[iteration] == c.hashes[iteration]) {
+			iteration++;
+		}
+		String where = "seed=" + c.seed + " totalCars=" + c.totalCars + " (" + c.fleet + "): ";
+		if (iteration == c.hashes.length) {
+			return where + "the reference stops after iteration " + (iteration - 1) + ", the engine doesn't";
+		}
+		if (iteration == hashes.length) {
+			return where + "the engine stops after iteration " + (iteration - 1) + ", the reference doesn't";
+		}
+
+		//repeat both engines up to this iteration and compare the cells
+		TrafficEngine reference = REFERENCE.create(scenario, c.totalCars, golden.power, golden.treshold, c.fleet, c.seed);
+		engine = factory.create(scenario, c.totalCars, golden.power, golden.treshold, c.fleet, c.seed);
+		for (int i = 0; i < iteration; i++) {
+			reference.nextIteration();
+			engine.nextIteration();
+		}
+		int[] expected = new int[TrafficEngine.snapshotSize(topology)];
+		int[] actual = new int[expected.length];
+		reference.snapshot(expected);
+		engine.snapshot(actual);
+
+		String note = "";
+		long[] referenceHashes = GoldenTrace.run(REFERENCE.create(scenario, c.totalCars, golden.power, golden.treshold,
+				c.fleet, c.seed), topology, c.hashes);
+		if (referenceHashes.length <= iteration || referenceHashes[iteration] != c.hashes[iteration]) {
+			note = " (CellularAutomaton itself doesn't match the golden trace here, record it again)";
+		}
+
+		for (int cell = 0; cell < expected.length; cell++) {
+			if (expected[cell] != actual[cell]) {
+				if (cell == expected.length - 1) {
+					return where + "iteration " + iteration + ", traffic light: expected "
+							+ TrafficLightStates.values()[expected[cell]] + ", actual "
+							+ TrafficLightStates.values()[actual[cell]] + note;
+				}
+				return where + "iteration " + iteration + ", cell y=" + cell / topology.width + " x="
+						+ cell % topology.width + ": expected " + describe(expected[cell])
+						+ ", actual " + describe(actual[cell]) + note;
+			}
+		}
+		return where + "iteration " + iteration + ": the hash differs, but the states are the same" + note;
+	}
+
+	private static String describe(int code) {
+		if (code == 0) {
+			return "no vehicle";
+		}
+		VehicleType type = VehicleType.values()[((code - 1) >> 16) & 0xF];
+		int part = (code - 1) >> 20;
+		int velocityY = (((code - 1) >> 8) & 0xFF) - 128;
+		int velocityX = ((code - 1) & 0xFF) - 128;
+		return type + " cell " + part + " (" + velocityY + ", " + velocityX + ")";
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Usage: DifferentialCheck record <golden file> <seeds> <totalCars,...> [scenario file]");
+			System.out.println("       DifferentialCheck verify <golden file> [factory class] [threads] [scenario file]");
+			return;
+		}
+
+		if (args[0].equals("record")) {
+			Scenario scenario = loadScenario(args, 4);
+			String[] values = args[3].split(",");
+			int[] cars = new int[values.length];
+			for (int i = 0; i < cars.length; i++) {
+				cars[i] = Integer.parseInt(values[i]);
+			}
+			GoldenTrace golden = record(scenario, Integer.parseInt(args[2]), cars);
+			golden.write(args[1]);
+			System.out.println(golden.cases.size() + " cases are recorded in " + args[1]);
+		}
+		else {
+			Scenario scenario = loadScenario(args, 4);
+			TrafficEngine.Factory factory = REFERENCE;
+			if (args.length > 2 && !args[2].equals("reference")) {
+				factory = (TrafficEngine.Factory) Class.forName(args[2]).getDeclaredConstructor().newInstance();
+			}
+			int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+			GoldenTrace golden = GoldenTrace.read(args[1]);
+			ArrayList<String> divergences = verify(golden, scenario, factory, threads);
+			for (String divergence : divergences) {
+				System.out.println(divergence);
+			}
+			System.out.println((golden.cases.size() - divergences.size()) + " of " + golden.cases.size()
+					+ " cases are the same");
+			if (!divergences.isEmpty()) {
+				System.exit(1);
+			}
+		}
+	}
+
+	private static Scenario loadScenario(String[] args, int index) throws IOException {
+		return args.length > index ? Scenario.load(args[index]) : Scenario.crossroad(64, 64);
+	}
+}
@@ -0,0 +1,64 @@
+package cellmodel;
+
+import java.util.Random;
+
+/* Fleet
+ * Shares of vehicle types among the cars placed at the start of an experiment.
+ * A fleet of one type doesn't use the random generator, so such experiments are the same as before fleets.
+ */
+
+public class Fleet {
+
+	public static final Fleet CARS = new Fleet(1, 0, 0);
+
+	private final VehicleType[] types = VehicleType.values();
+	private final double[] shares;
+	private final double total;
+	private VehicleType single = null;
+
+	//shares of cars, trucks and buses, e.g. (0.8, 0.15, 0.05)
+	public Fleet(double cars, double trucks, double buses) {
+		shares = new double[] { cars, trucks, buses };
+		double sum = 0;
+		int kinds = 0;
+		for (int i = 0; i < shares.length; i++) {
+			if (shares[i] < 0) {
+				throw new IllegalArgumentException("A share can't be negative: " + shares[i]);
+			}
+			if (shares[i] > 0) {
+				single = types[i];
+				kinds++;
+			}
+			sum += shares[i];
+		}
+		if (kinds == 0) {
+			throw new IllegalArgumentException("A fleet has no vehicles");
+		}
+		if (kinds > 1) {
+			single = null;
+		}
+		total = sum;
+	}
+
+	public double getShare(VehicleType type) {
+		return shares[type.ordinal()];
+	}
+
+	public String toString() {
+		return "cars " + shares[0] + ", trucks " + shares[1] + ", buses " + shares[2];
+	}
+
+	VehicleType pick(Random rand) {
+		if (single != null) {
+			return single;
+		}
+		double r = rand.nextDouble() * total;
+		for (int i = 0; i < shares.length - 1; i++) {
+			r -= shares[i];
+			if (r < 0) {
+				return types[i];
+			}
+		}
+		return types[shares.length - 1];
+	}
+}
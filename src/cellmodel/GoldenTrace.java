@@ -0,0 +1,152 @@
+package cellmodel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/* GoldenTrace
+ * Recorded hashes of the reference engine for many experiments (cases).
+ * A case is a seed, totalCars and a fleet, every case keeps one rolling hash per iteration (8 bytes):
+ * hash[0] is the state after filling, hash[t] mixes hash[t - 1] with the state after iteration t.
+ * So the first different hash is the first iteration where an engine goes another way.
+ *
+ * File (big-endian): MAGIC, height, width, power, treshold, number of cases,
+ * then for every case: seed, totalCars, shares of cars, trucks and buses, number of hashes, hashes.
+ */
+
+public class GoldenTrace {
+
+	//"GLD2", the second version has fleets
+	public static final int MAGIC = 0x474C4432;
+
+	//an experiment longer than this is cut
+	public static final int MAX_ITERATIONS = 100000;
+
+	public static class Case {
+		public final long seed;
+		public final int totalCars;
+		public final Fleet fleet;
+		public final long[] hashes;
+
+		Case(long seed, int totalCars, Fleet fleet, long[] hashes) {
+			this.seed = seed;
+			this.totalCars = totalCars;
+			this.fleet = fleet;
+			this.hashes = hashes;
+		}
+	}
+
+	public final int height;
+	public final int width;
+	public final float power;
+	public final double treshold;
+	public final ArrayList<Case> cases = new ArrayList<Case>();
+
+	public GoldenTrace(int height, int width, float power, double treshold) {
+		this.height = height;
+		this.width = width;
+		this.power = power;
+		this.treshold = treshold;
+	}
+
+	//a cheap 64-bit hash of a snapshot. Only cars and the traffic light are mixed in, empty cells are skipped
+	public static long hash(int[] state) {
+		long h = 0xCBF29CE484222325L;
+		for (int i = 0; i < state.length - 1; i++) {
+			if (state[i] != 0) {
+				h = (h ^ ((long) i << 32 | state[i])) * 0x100000001B3L;
+			}
+		}
+		h = (h ^ state[state.length - 1]) * 0x100000001B3L;
+		return mix(h);
+	}
+
+	//the rolling hash of the previous iterations and the new state
+	public static long roll(long previous, long state) {
+		return mix(previous * 31 + state);
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/* Run an engine and hash its states until it stops.
+	 * If @expected is not null, it stops at the first hash different from @expected
+	 */
+	public static long[] run(TrafficEngine engine, LaneTopology topology, long[] expected) {
+		int[] state = new int[TrafficEngine.snapshotSize(topology)];
+		long[] hashes = new long[64];
+		int count = 0;
+
+		engine.snapshot(state);
+		long rolling = hash(state);
+		while (true) {
+			if (count == hashes.length) {
+				hashes = Arrays.copyOf(hashes, count * 2);
+			}
+			hashes[count++] = rolling;
+			if (expected != null && (count > expected.length || expected[count - 1] != rolling)) {
+				break;
+			}
+			if (engine.isStopped() || count > MAX_ITERATIONS) {
+				break;
+			}
+			engine.nextIteration();
+			engine.snapshot(state);
+			rolling = roll(rolling, hash(state));
+		}
+		return Arrays.copyOf(hashes, count);
+	}
+
+	public void write(String path) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(height);
+			out.writeInt(width);
+			out.writeFloat(power);
+			out.writeDouble(treshold);
+			out.writeInt(cases.size());
+			for (Case c : cases) {
+				out.writeLong(c.seed);
+				out.writeInt(c.totalCars);
+				for (VehicleType type : VehicleType.values()) {
+					out.writeDouble(c.fleet.getShare(type));
+				}
+				out.writeInt(c.hashes.length);
+				for (long h : c.hashes) {
+					out.writeLong(h);
+				}
+			}
+		}
+	}
+
+	public static GoldenTrace read(String path) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(path + " is not a golden trace");
+			}
+			GoldenTrace trace = new GoldenTrace(in.readInt(), in.readInt(), in.readFloat(), in.readDouble());
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				long seed = in.readLong();
+				int totalCars = in.readInt();
+				Fleet fleet = new Fleet(in.readDouble(), in.readDouble(), in.readDouble());
+				long[] hashes = new long[in.readInt()];
+				for (int t = 0; t < hashes.length; t++) {
+					hashes[t] = in.readLong();
+				}
+				trace.cases.add(new Case(seed, totalCars, fleet, hashes));
+			}
+			return trace;
+		}
+	}
+}
@@ -1,4 +1,7 @@
 package cellmodel;
+import java.io.IOException;
+import java.util.Random;
+
 import processing.core.PApplet;
 
 /* GridOfCells
@@ -16,6 +19,20 @@ public class GridOfCells extends PApplet {
 	//csvutil is for writing results in a csv file 
 	private CSVutil csvutil = new CSVutil();
 
+	//a road layout. Set scenarioFile (e.g. "scenarios/crossroad.txt") to load it from a file,
+	//leave it null to use the classic crossroad of the screen size
+	private String scenarioFile = null;
+	private Scenario scenario;
+
+	//recorded arrivals (see ArrivalTrace). Set traceFile to replay them in every experiment,
+	//they come in addition to totalCars, so start with totalCars = 0 to replay only the trace.
+	//traceTimeScale is trace seconds per one iteration
+	private String traceFile = null;
+	private double traceTimeScale = 1;
+
+	//shares of cars, trucks and buses among totalCars, e.g. new Fleet(0.8, 0.15, 0.05)
+	private Fleet fleet = Fleet.CARS;
+
 	//start point
 	protected int totalCars = 50;
 	private int seriesCount = 0;
@@ -43,14 +60,48 @@ public class GridOfCells extends PApplet {
 	//It needs to be here in new version of processing. 
 	//The size method must be here not in the setup method 
 	public void settings() {
-		size(640, 640);
+		if (scenarioFile == null) {
+			scenario = Scenario.crossroad(640 / CellularAutomaton.SCALE, 640 / CellularAutomaton.SCALE);
+		}
+		else {
+			try {
+				scenario = Scenario.load(scenarioFile);
+			}
+			catch (IOException e) {
+				throw new RuntimeException("Can't read the scenario " + scenarioFile, e);
+			}
+		}
+		size(scenario.getWidth() * CellularAutomaton.SCALE, scenario.getHeight() * CellularAutomaton.SCALE);
 	}
 	
 	//setup method will be initialized just one time
 	public void setup() {
 		//frameRate is for speed of updating the grid
 		frameRate(1);
-		ca = new CellularAutomaton(totalCars, power, treshold, this);
+		ca = newAutomaton();
+	}
+
+	//a new grid with the current parameters and the trace if there is one.
+	//The trace of the old grid is closed
+	private CellularAutomaton newAutomaton() {
+		if (ca != null) {
+			try {
+				ca.closeDemand();
+			}
+			catch (IOException e) {
+				throw new TraceException("Can't close the arrival trace " + traceFile, e);
+			}
+		}
+		CellularAutomaton automaton = new CellularAutomaton(scenario, totalCars, power, treshold, fleet, new Random(), this);
+		if (traceFile != null) {
+			try {
+				automaton.setDemand(new TraceDemand(new ArrivalTrace(traceFile), scenario.topology(), traceTimeScale));
+			}
+			catch (IOException e) {
+				throw new TraceException("Can't open the arrival trace " + traceFile, e);
+			}
+		}
+		return automaton;
 	}
 
 	//draw method will be always run until you don't stop by hand
@@ -66,7 +117,7 @@ public class GridOfCells extends PApplet {
 				seriesCount++;
 				overallTime += ca.overallTime;
 				timeDelay += ca.timeDelay;
-				ca = new CellularAutomaton(totalCars, power, treshold, this);
+				ca = newAutomaton();
 			} 
 			else {
 				//display in console
@@ -89,10 +140,14 @@ public class GridOfCells extends PApplet {
 				seriesCount = 0;
 				
 				//Make a new grid with more cars (increased by one)
-				ca = new CellularAutomaton(totalCars, power, treshold, this);
+				ca = newAutomaton();
 			}
 		} 
 		
+		//a broken trace fails the same way with any parameters, so it stops the sketch
+		catch (TraceException e) {
+			throw e;
+		}
 		//if amount of cars becomes more than available on the road, throw an exception
 		//Here, make a new grid with new parameters
 		catch (Exception e) {
@@ -110,7 +165,7 @@ public class GridOfCells extends PApplet {
 			}
 
 			println("t=" + treshold + ", p=" + power);
-			ca = new CellularAutomaton(totalCars, power, treshold, this);
+			ca = newAutomaton();
 		}
 	}
 }
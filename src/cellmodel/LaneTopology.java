@@ -0,0 +1,230 @@
+package cellmodel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/* LaneTopology
+ * A compiled scenario. It keeps everything about the road layout that does not change
+ * during an experiment, so CellularAutomaton doesn't need to build it cell by cell.
+ *
+ * Cells are numbered as y * width + x.
+ * A lane is a straight run of road cells with the same direction, cells are ordered along the direction.
+ * A lane leading into the roadcrossing has a stop line (its last cell) and a successor lane
+ * on the other side of the roadcrossing.
+ */
+
+public class LaneTopology {
+
+	final int height;
+	final int width;
+
+	//the grid without cars. CellularAutomaton copies it into its own grid
+	final CellType[][] cellTypes;
+
+	//directions (y, x) of every cell, 0 for walls
+	final int[][] dirY;
+	final int[][] dirX;
+
+	//move permissions (y, x) of lanes. The permissions of the roadcrossing depend on the traffic light
+	final int[][] permY;
+	final int[][] permX;
+	final boolean[][] crossing;
+
+	//lanes. The cells of lane i are laneCells[laneOffset[i]] ... laneCells[laneOffset[i + 1] - 1]
+	final int laneCount;
+	final int[] laneOffset;
+	final int[] laneCells;
+	final int[] laneDirY;
+	final int[] laneDirX;
+	//the last cell before the roadcrossing, -1 if a lane doesn't lead to the roadcrossing
+	final int[] laneStopLine;
+	//a lane after the roadcrossing, -1 if there is no such lane
+	final int[] laneSuccessor;
+	//true if a lane starts at the bounds of the grid, so cars can come into it
+	final boolean[] laneEntrance;
+	//the lane of every cell, -1 for not lanes
+	final int[] cellLane;
+	//the place of every cell in its lane, 0 is the first cell
+	final int[] lanePosition;
+	//all the road cells (lanes and the roadcrossing) row by row
+	final int[] roadCells;
+
+	LaneTopology(Scenario scenario) {
+		height = scenario.getHeight();
+		width = scenario.getWidth();
+
+		cellTypes = new CellType[height][width];
+		dirY = new int[height][width];
+		dirX = new int[height][width];
+		permY = new int[height][width];
+		permX = new int[height][width];
+		crossing = new boolean[height][width];
+
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				cellTypes[y][x] = CellType.ROAD;
+				switch (scenario.cellAt(y, x)) {
+				case Scenario.RIGHT:
+					dirX[y][x] = 1;
+					permX[y][x] = 1;
+					break;
+				case Scenario.LEFT:
+					dirX[y][x] = -1;
+					permX[y][x] = 1;
+					break;
+				case Scenario.DOWN:
+					dirY[y][x] = 1;
+					permY[y][x] = 1;
+					break;
+				case Scenario.UP:
+					dirY[y][x] = -1;
+					permY[y][x] = 1;
+					break;
+				case Scenario.CROSSING:
+					crossing[y][x] = true;
+					break;
+				case Scenario.TRAFFIC_LIGHT:
+					cellTypes[y][x] = CellType.TRAFFIC_LIGHT;
+					break;
+				default:
+					cellTypes[y][x] = CellType.WALL;
+				}
+			}
+		}
+
+		//the roadcrossing takes directions of the lanes going through it
+		int roadCount = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (crossing[y][x]) {
+					dirX[y][x] = crossingDirX(y, x);
+					dirY[y][x] = crossingDirY(y, x);
+				}
+				if (cellTypes[y][x] == CellType.ROAD) {
+					roadCount++;
+				}
+			}
+		}
+
+		roadCells = new int[roadCount];
+		int r = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (cellTypes[y][x] == CellType.ROAD) {
+					roadCells[r++] = y * width + x;
+				}
+			}
+		}
+
+		//split lane cells into lanes. A lane starts where the previous cell is not the same lane
+		cellLane = new int[height * width];
+		lanePosition = new int[height * width];
+		Arrays.fill(cellLane, -1);
+		ArrayList<int[]> lanes = new ArrayList<int[]>();
+		int totalLaneCells = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (!isLane(y, x) || sameLane(y, x, y - dirY[y][x], x - dirX[y][x])) {
+					continue;
+				}
+				int length = 1;
+				while (sameLane(y, x, y + length * dirY[y][x], x + length * dirX[y][x])) {
+					length++;
+				}
+				int[] lane = new int[length];
+				for (int i = 0; i < length; i++) {
+					lane[i] = (y + i * dirY[y][x]) * width + (x + i * dirX[y][x]);
+					cellLane[lane[i]] = lanes.size();
+					lanePosition[lane[i]] = i;
+				}
+				lanes.add(lane);
+				totalLaneCells += length;
+			}
+		}
+
+		laneCount = lanes.size();
+		laneOffset = new int[laneCount + 1];
+		laneCells = new int[totalLaneCells];
+		laneDirY = new int[laneCount];
+		laneDirX = new int[laneCount];
+		laneStopLine = new int[laneCount];
+		laneSuccessor = new int[laneCount];
+		laneEntrance = new boolean[laneCount];
+
+		for (int i = 0; i < laneCount; i++) {
+			int[] lane = lanes.get(i);
+			System.arraycopy(lane, 0, laneCells, laneOffset[i], lane.length);
+			laneOffset[i + 1] = laneOffset[i] + lane.length;
+
+			int firstY = lane[0] / width;
+			int firstX = lane[0] % width;
+			int lastY = lane[lane.length - 1] / width;
+			int lastX = lane[lane.length - 1] % width;
+			int dy = dirY[firstY][firstX];
+			int dx = dirX[firstY][firstX];
+			laneDirY[i] = dy;
+			laneDirX[i] = dx;
+			laneEntrance[i] = !inside(firstY - dy, firstX - dx);
+
+			//go through the roadcrossing to find the next lane
+			laneStopLine[i] = -1;
+			laneSuccessor[i] = -1;
+			int y = lastY + dy;
+			int x = lastX + dx;
+			if (inside(y, x) && crossing[y][x]) {
+				laneStopLine[i] = lane[lane.length - 1];
+				while (inside(y, x) && crossing[y][x]) {
+					y += dy;
+					x += dx;
+				}
+				if (inside(y, x) && isLane(y, x) && dirY[y][x] == dy && dirX[y][x] == dx) {
+					laneSuccessor[i] = cellLane[y * width + x];
+				}
+			}
+		}
+	}
+
+	//the closest horizontal lane in the same row
+	private int crossingDirX(int y, int x) {
+		for (int i = x; i >= 0; i--) {
+			if (!crossing[y][i]) {
+				return isLane(y, i) ? dirX[y][i] : 0;
+			}
+		}
+		for (int i = x; i < width; i++) {
+			if (!crossing[y][i]) {
+				return isLane(y, i) ? dirX[y][i] : 0;
+			}
+		}
+		return 0;
+	}
+
+	//the closest vertical lane in the same column
+	private int crossingDirY(int y, int x) {
+		for (int i = y; i >= 0; i--) {
+			if (!crossing[i][x]) {
+				return isLane(i, x) ? dirY[i][x] : 0;
+			}
+		}
+		for (int i = y; i < height; i++) {
+			if (!crossing[i][x]) {
+				return isLane(i, x) ? dirY[i][x] : 0;
+			}
+		}
+		return 0;
+	}
+
+	boolean inside(int y, int x) {
+		return y >= 0 && y < height && x >= 0 && x < width;
+	}
+
+	//a road cell which is not the roadcrossing
+	boolean isLane(int y, int x) {
+		return cellTypes[y][x] == CellType.ROAD && !crossing[y][x];
+	}
+
+	private boolean sameLane(int y, int x, int nextY, int nextX) {
+		return inside(nextY, nextX) && isLane(nextY, nextX)
+				&& dirY[nextY][nextX] == dirY[y][x] && dirX[nextY][nextX] == dirX[y][x];
+	}
+}
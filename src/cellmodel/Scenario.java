@@ -0,0 +1,159 @@
+package cellmodel;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/* Scenario
+ * A road layout of the grid: walls, lanes with their directions, the roadcrossing and the traffic light.
+ *
+ * A scenario is a plain text file. Every row of the file is a row of the grid (y-axis),
+ * every character is a cell (x-axis). Lines starting with ';' are comments.
+ *
+ *   #  wall
+ *   >  road, a car moves to the right  (direction (0, 1))
+ *   <  road, a car moves to the left   (direction (0, -1))
+ *   v  road, a car moves down          (direction (1, 0))
+ *   ^  road, a car moves up            (direction (-1, 0))
+ *   +  roadcrossing, directions are taken from the lanes going through it
+ *   T  traffic light (it is only displayed)
+ *
+ * To keep big maps small a character can be prefixed by a number of repetitions,
+ * e.g. "30#2^32#" is 30 walls, 2 roads up and 32 walls.
+ *
+ * A scenario is compiled once into LaneTopology. The topology is immutable,
+ * so all the grids (experiments) with the same scenario share it.
+ */
+
+public class Scenario {
+
+	public static final char WALL = '#';
+	public static final char RIGHT = '>';
+	public static final char LEFT = '<';
+	public static final char DOWN = 'v';
+	public static final char UP = '^';
+	public static final char CROSSING = '+';
+	public static final char TRAFFIC_LIGHT = 'T';
+
+	private final char[][] layout;
+	private LaneTopology topology;
+
+	Scenario(char[][] layout) {
+		if (layout.length == 0 || layout[0].length == 0) {
+			throw new IllegalArgumentException("A scenario is empty");
+		}
+		for (int y = 0; y < layout.length; y++) {
+			if (layout[y].length != layout[0].length) {
+				throw new IllegalArgumentException("Row " + y + " has " + layout[y].length
+						+ " cells, expected " + layout[0].length);
+			}
+		}
+		this.layout = layout;
+	}
+
+	//read a scenario from a text file
+	public static Scenario load(String path) throws IOException {
+		ArrayList<char[]> rows = new ArrayList<char[]>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.charAt(0) == ';') {
+					continue;
+				}
+				rows.add(decodeRow(line));
+			}
+		}
+		return new Scenario(rows.toArray(new char[rows.size()][]));
+	}
+
+	//expand repetitions like "30#" and check the characters
+	private static char[] decodeRow(String line) {
+		StringBuilder row = new StringBuilder();
+		//-1 if there is no count before the character
+		int count = -1;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (Character.isDigit(c)) {
+				count = Math.max(count, 0) * 10 + (c - '0');
+				continue;
+			}
+			if (count == 0) {
+				throw new IllegalArgumentException("Zero count before '" + c + "' in the scenario row: " + line);
+			}
+			switch (c) {
+			case WALL:
+			case RIGHT:
+			case LEFT:
+			case DOWN:
+			case UP:
+			case CROSSING:
+			case TRAFFIC_LIGHT:
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown cell '" + c + "' in the scenario row: " + line);
+			}
+			for (int n = 0; n < Math.max(count, 1); n++) {
+				row.append(c);
+			}
+			count = -1;
+		}
+		if (count >= 0) {
+			throw new IllegalArgumentException("Count without a cell at the end of the scenario row: " + line);
+		}
+		return row.toString().toCharArray();
+	}
+
+	/* The classic layout of this model: two roads with two lanes each crossing in the center
+	 * and the traffic light to the top left of the roadcrossing.
+	 * @height and @width are the size of the grid in cells
+	 */
+	public static Scenario crossroad(int height, int width) {
+		char[][] layout = new char[height][width];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				boolean horizontal = y == height / 2 - 1 || y == height / 2;
+				boolean vertical = x == width / 2 - 1 || x == width / 2;
+
+				if (horizontal && vertical) {
+					layout[y][x] = CROSSING;
+				}
+				else if (horizontal) {
+					layout[y][x] = y < height / 2 ? RIGHT : LEFT;
+				}
+				else if (vertical) {
+					layout[y][x] = x < width / 2 ? UP : DOWN;
+				}
+				else if (y >= height / 2 - 3 && y < height / 2 - 1
+						&& x >= width / 2 - 3 && x < width / 2 - 1) {
+					layout[y][x] = TRAFFIC_LIGHT;
+				}
+				else {
+					layout[y][x] = WALL;
+				}
+			}
+		}
+		return new Scenario(layout);
+	}
+
+	public int getHeight() {
+		return layout.length;
+	}
+
+	public int getWidth() {
+		return layout[0].length;
+	}
+
+	char cellAt(int y, int x) {
+		return layout[y][x];
+	}
+
+	//compile the scenario just one time
+	public synchronized LaneTopology topology() {
+		if (topology == null) {
+			topology = new LaneTopology(this);
+		}
+		return topology;
+	}
+}
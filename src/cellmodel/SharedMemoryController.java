@@ -0,0 +1,96 @@
+package cellmodel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/* SharedMemoryController
+ * The controller side of SharedMemoryEnvironment for another JVM.
+ * Observations are read straight from the mapped file, see BatchEnvironment for their layout.
+ * A command which gets no answer in time (the environment died or hangs) throws IOException.
+ */
+
+public class SharedMemoryController implements Closeable {
+
+	//how long a command may take by default
+	public static final long TIMEOUT_MS = 60 * 1000;
+
+	private final FileChannel channel;
+	private final ByteBuffer header;
+	private final IntBuffer actions;
+	private final IntBuffer observations;
+	private final int count;
+	private final int stride;
+	private final long timeoutMs;
+	private int request;
+
+	public SharedMemoryController(String path) throws IOException {
+		this(path, TIMEOUT_MS);
+	}
+
+	/* @timeoutMs is how long a command may take, 0 waits forever
+	 */
+	public SharedMemoryController(String path, long timeoutMs) throws IOException {
+		this.timeoutMs = timeoutMs;
+		channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+
+		header = file.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		if (SharedMemoryEnvironment.acquire(header, 0) != SharedMemoryEnvironment.MAGIC) {
+			throw new IOException(path + " is not a ready environment");
+		}
+		count = header.getInt(4 * SharedMemoryEnvironment.COUNT);
+		stride = header.getInt(4 * SharedMemoryEnvironment.STRIDE);
+		request = SharedMemoryEnvironment.acquire(header, SharedMemoryEnvironment.REQUEST);
+
+		actions = SharedMemoryEnvironment.region(file, SharedMemoryEnvironment.HEADER, count);
+		observations = SharedMemoryEnvironment.region(file, SharedMemoryEnvironment.HEADER + count, count * stride);
+	}
+
+	//one iteration in every grid, actions[i] is for grid i
+	public IntBuffer step(int[] actions) throws IOException {
+		for (int i = 0; i < count; i++) {
+			this.actions.put(i, actions[i]);
+		}
+		return send(SharedMemoryEnvironment.STEP);
+	}
+
+	public IntBuffer reset() throws IOException {
+		return send(SharedMemoryEnvironment.RESET);
+	}
+
+	private IntBuffer send(int command) throws IOException {
+		header.putInt(4 * SharedMemoryEnvironment.COMMAND, command);
+		SharedMemoryEnvironment.release(header, SharedMemoryEnvironment.REQUEST, ++request);
+		//after a command without an answer the response is older than request - 1
+		int response = request - 1;
+		while (response != request) {
+			response = SharedMemoryEnvironment.awaitChange(header, SharedMemoryEnvironment.RESPONSE, response, timeoutMs);
+		}
+		return observations;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public int getStride() {
+		return stride;
+	}
+
+	//stop the environment. The file is closed even if the environment doesn't answer
+	public void close() throws IOException {
+		try {
+			send(SharedMemoryEnvironment.CLOSE);
+		}
+		finally {
+			channel.close();
+		}
+	}
+}
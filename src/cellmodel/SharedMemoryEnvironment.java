@@ -0,0 +1,156 @@
+package cellmodel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/* SharedMemoryEnvironment
+ * BatchEnvironment served through a memory-mapped file, so a controller in another process
+ * (another JVM, a python script with numpy.memmap) steps the grids without sockets or serialization.
+ * The grids write observations straight into the file.
+ *
+ * The file is little-endian ints:
+ *   [0] MAGIC  [1] count  [2] stride
+ *   [3] request  - the controller increases it after writing a command and actions
+ *   [4] command  - STEP, RESET or CLOSE
+ *   [5] response - the environment sets it to request when the command is done
+ *   [6], [7] reserved
+ *   [HEADER ...] count actions
+ *   [HEADER + count ...] count * stride observations (see BatchEnvironment)
+ * MAGIC, request and response are written with release and read with acquire,
+ * so everything written before them is seen by the other side after it reads them.
+ *
+ * Start it with: java cellmodel.SharedMemoryEnvironment <file> <count> <totalCars> <seed> [scenario file]
+ * A java controller is SharedMemoryController.
+ */
+
+public class SharedMemoryEnvironment implements Closeable {
+
+	public static final int MAGIC = 0x43454C4C;
+	public static final int COUNT = 1;
+	public static final int STRIDE = 2;
+	public static final int REQUEST = 3;
+	public static final int COMMAND = 4;
+	public static final int RESPONSE = 5;
+	public static final int HEADER = 8;
+
+	public static final int STEP = 0;
+	public static final int RESET = 1;
+	public static final int CLOSE = 2;
+
+	//ints of the header by their byte offset, with the memory ordering of the header slots
+	private static final VarHandle SLOT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private final FileChannel channel;
+	private final ByteBuffer header;
+	private final IntBuffer actions;
+	private final BatchEnvironment environment;
+
+	public SharedMemoryEnvironment(String path, Scenario scenario, int count, int totalCars, long seed)
+			throws IOException {
+		int stride = BatchEnvironment.stride(scenario);
+		long size = 4L * (HEADER + count + (long) count * stride);
+
+		channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		channel.truncate(0);
+		MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+		header = file.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		actions = region(file, HEADER, count);
+		IntBuffer observations = region(file, HEADER + count, count * stride);
+		environment = new BatchEnvironment(scenario, count, totalCars, seed, observations);
+
+		header.putInt(4 * COUNT, count);
+		header.putInt(4 * STRIDE, stride);
+		header.putInt(4 * REQUEST, 0);
+		header.putInt(4 * RESPONSE, 0);
+		release(header, 0, MAGIC);
+	}
+
+	//a view of ints of the file, from and length are in ints
+	static IntBuffer region(ByteBuffer file, int from, int length) {
+		ByteBuffer bytes = file.duplicate();
+		bytes.position(4 * from);
+		bytes.limit(4 * (from + length));
+		return bytes.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+	}
+
+	//header[index] = value after everything written before
+	static void release(ByteBuffer header, int index, int value) {
+		SLOT.setRelease(header, 4 * index, value);
+	}
+
+	//header[index] before everything read after
+	static int acquire(ByteBuffer header, int index) {
+		return (int) SLOT.getAcquire(header, 4 * index);
+	}
+
+	/* Wait until header[index] != value.
+	 * @timeoutMs is how long the other side may take, 0 waits forever
+	 */
+	static int awaitChange(ByteBuffer header, int index, int value, long timeoutMs) throws IOException {
+		long deadline = System.nanoTime() + timeoutMs * 1000000;
+		int spins = 0;
+		int current;
+		while ((current = acquire(header, index)) == value) {
+			if (++spins > 1000) {
+				if (timeoutMs > 0 && System.nanoTime() - deadline > 0) {
+					throw new IOException("No answer in " + timeoutMs + " ms, the other process may be dead");
+				}
+				Thread.yield();
+			}
+		}
+		return current;
+	}
+
+	//do the commands of the controller until CLOSE. A controller may think for any time between commands
+	public void serve() throws IOException {
+		int request = 0;
+		while (true) {
+			request = awaitChange(header, REQUEST, request, 0);
+			int command = header.getInt(4 * COMMAND);
+
+			if (command == STEP) {
+				environment.step(actions);
+			}
+			else if (command == RESET) {
+				environment.reset();
+			}
+
+			release(header, RESPONSE, request);
+			if (command == CLOSE) {
+				return;
+			}
+		}
+	}
+
+	public BatchEnvironment getEnvironment() {
+		return environment;
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 4) {
+			System.out.println("Usage: SharedMemoryEnvironment <file> <count> <totalCars> <seed> [scenario file]");
+			return;
+		}
+		Scenario scenario = args.length > 4 ? Scenario.load(args[4]) : Scenario.crossroad(64, 64);
+		try (SharedMemoryEnvironment shared = new SharedMemoryEnvironment(args[0], scenario,
+				Integer.parseInt(args[1]), Integer.parseInt(args[2]), Long.parseLong(args[3]))) {
+			shared.getEnvironment().setParallel(true);
+			shared.serve();
+		}
+	}
+}
@@ -0,0 +1,318 @@
+package cellmodel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/* SweepCoordinator
+ * Runs the experiments of GridOfCells (every power, treshold, totalCars and replica) in several worker JVMs.
+ * Small workers keep heaps small and a crashed worker loses only its current unit.
+ *
+ * Every combination is one work unit with its own seed, so the results don't depend on which worker ran it.
+ * The seed depends only on the base seed, totalCars and the replica, so a combination gets the same seed
+ * in any sweep, and all the powers and tresholds are compared on the same cars.
+ * Workers (SweepWorker) connect over a local socket and take units from a queue.
+ * If a worker dies or hangs, its unit goes back to the queue, a hung worker is killed and a new worker is started.
+ * All the results are written in one csv file ordered by the units.
+ *
+ * Start: java cellmodel.SweepCoordinator <output.csv> <workers> <powers> <tresholds> <minCars>-<maxCars> <replicas> [scenario file]
+ * e.g.   java cellmodel.SweepCoordinator sweep.csv 4 0.5,1,1.5,2 5,15,25 1-253 10
+ * Workers from other machines can join with SweepWorker <host> <port> if the coordinator listens on their network.
+ */
+
+public class SweepCoordinator {
+
+	//a worker which doesn't answer for this time is thought to be dead
+	private static final int UNIT_TIMEOUT_MS = 10 * 60 * 1000;
+	//no more than this number of workers are started again after they died
+	private static final int MAX_RESTARTS_PER_WORKER = 3;
+
+	private static class Unit {
+		final int id;
+		final float power;
+		final double treshold;
+		final int totalCars;
+		final int replica;
+		final long seed;
+		long overallTime = -1;
+		long timeDelay = -1;
+
+		Unit(int id, float power, double treshold, int totalCars, int replica, long seed) {
+			this.id = id;
+			this.power = power;
+			this.treshold = treshold;
+			this.totalCars = totalCars;
+			this.replica = replica;
+			this.seed = seed;
+		}
+	}
+
+	private final ArrayList<Unit> units = new ArrayList<Unit>();
+	private final LinkedBlockingDeque<Unit> queue = new LinkedBlockingDeque<Unit>();
+	private int finished = 0;
+
+	private final String scenarioFile;
+	private ServerSocket server;
+
+	//the started worker processes by their ids
+	private final HashMap<Integer, Process> workerProcesses = new HashMap<Integer, Process>();
+	private int startedWorkers = 0;
+
+	/* The units are all the combinations of @powers, @tresholds, totalCars from @minCars to @maxCars and @replicas.
+	 * totalCars more than the road cells of the scenario are skipped
+	 */
+	public SweepCoordinator(float[] powers, double[] tresholds, int minCars, int maxCars, int replicas,
+			long seed, String scenarioFile) throws IOException {
+		this.scenarioFile = scenarioFile;
+		Scenario scenario = scenarioFile != null ? Scenario.load(scenarioFile) : Scenario.crossroad(64, 64);
+		maxCars = Math.min(maxCars, scenario.topology().roadCells.length);
+
+		for (float power : powers) {
+			for (double treshold : tresholds) {
+				for (int totalCars = minCars; totalCars <= maxCars; totalCars++) {
+					for (int replica = 0; replica < replicas; replica++) {
+						units.add(new Unit(units.size(), power, treshold, totalCars, replica,
+								unitSeed(seed, totalCars, replica)));
+					}
+				}
+			}
+		}
+		queue.addAll(units);
+	}
+
+	//mix the base seed with the combination, so close combinations get unrelated seeds
+	static long unitSeed(long seed, int totalCars, int replica) {
+		long h = seed;
+		h = h * 0x9E3779B97F4A7C15L + totalCars;
+		h = h * 0x9E3779B97F4A7C15L + replica;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/* Start @workers worker processes, give them all the units and wait for the results.
+	 * @address is where workers connect to, the loopback for the local ones
+	 */
+	public void run(int workers, InetAddress address, String workerHeap) throws IOException, InterruptedException {
+		server = new ServerSocket(0, 50, address);
+		System.out.println("Sweep of " + units.size() + " units on " + address.getHostAddress() + ":" + server.getLocalPort());
+
+		Thread acceptor = new Thread(this::accept, "sweep-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		Process[] processes = new Process[workers];
+		int restarts = 0;
+		try {
+			for (int i = 0; i < workers; i++) {
+				processes[i] = startWorker(workerHeap);
+			}
+
+			//start a new worker instead of a dead one while there is work
+			while (!isFinished()) {
+				for (int i = 0; i < workers; i++) {
+					if (!processes[i].isAlive() && !isFinished() && restarts < workers * MAX_RESTARTS_PER_WORKER) {
+						System.out.println("Worker " + i + " exited with " + processes[i].exitValue() + ", starting a new one");
+						processes[i] = startWorker(workerHeap);
+						restarts++;
+					}
+				}
+				if (restarts >= workers * MAX_RESTARTS_PER_WORKER && !anyAlive(processes)) {
+					throw new IOException("All the workers died, " + (units.size() - finished) + " units are not done");
+				}
+				synchronized (this) {
+					wait(200);
+				}
+			}
+
+			//the workers get DONE and exit
+			server.close();
+			for (Process process : processes) {
+				process.waitFor(10, TimeUnit.SECONDS);
+			}
+		}
+		finally {
+			//no worker outlives the coordinator, even a hung one
+			server.close();
+			for (Process process : processes) {
+				if (process != null && process.isAlive()) {
+					process.destroyForcibly();
+				}
+			}
+		}
+	}
+
+	private synchronized Process startWorker(String workerHeap) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(java);
+		command.add("-Xmx" + workerHeap);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(SweepWorker.class.getName());
+		command.add(server.getInetAddress().getHostAddress());
+		command.add(String.valueOf(server.getLocalPort()));
+		if (scenarioFile != null) {
+			command.add(scenarioFile);
+		}
+		int id = startedWorkers++;
+		ProcessBuilder builder = new ProcessBuilder(command).inheritIO();
+		builder.environment().put(SweepWorker.WORKER_ID, String.valueOf(id));
+		Process process = builder.start();
+		workerProcesses.put(id, process);
+		return process;
+	}
+
+	//kill a worker started by this coordinator, so the restart loop replaces it. Other workers are left alone
+	private synchronized void stopWorker(int id) {
+		Process process = workerProcesses.remove(id);
+		if (process != null) {
+			process.destroyForcibly();
+		}
+	}
+
+	private static boolean anyAlive(Process[] processes) {
+		for (Process process : processes) {
+			if (process.isAlive()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private synchronized boolean isFinished() {
+		return finished == units.size();
+	}
+
+	//every worker connection is served in its own thread
+	private void accept() {
+		while (!server.isClosed()) {
+			try {
+				Socket socket = server.accept();
+				Thread connection = new Thread(() -> serve(socket), "sweep-worker-" + socket.getPort());
+				connection.setDaemon(true);
+				connection.start();
+			}
+			catch (IOException e) {
+				if (!server.isClosed()) {
+					System.out.println(e.getMessage());
+				}
+			}
+		}
+	}
+
+	//give units to one worker. If the worker is lost, its unit goes back to the queue and its process is killed
+	private void serve(Socket socket) {
+		Unit unit = null;
+		int worker = -1;
+		try (Socket s = socket;
+				BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8"));
+				PrintWriter out = new PrintWriter(s.getOutputStream(), true)) {
+			s.setSoTimeout(UNIT_TIMEOUT_MS);
+			String ready = in.readLine();
+			if (ready == null || !ready.startsWith("READY")) {
+				return;
+			}
+			String[] words = ready.split(" ");
+			if (words.length > 1) {
+				worker = Integer.parseInt(words[1]);
+			}
+			while (true) {
+				unit = nextUnit();
+				if (unit == null) {
+					out.println("DONE");
+					return;
+				}
+				out.println("UNIT " + unit.id + " " + unit.power + " " + unit.treshold + " "
+						+ unit.totalCars + " " + unit.seed);
+
+				String line = in.readLine();
+				if (line == null) {
+					throw new SocketException("the worker closed the connection");
+				}
+				String[] result = line.split(" ");
+				if (!result[0].equals("RESULT") || Integer.parseInt(result[1]) != unit.id) {
+					throw new SocketException("unexpected answer: " + line);
+				}
+				finish(unit, Long.parseLong(result[2]), Long.parseLong(result[3]));
+				unit = null;
+			}
+		}
+		catch (Exception e) {
+			if (unit != null) {
+				System.out.println("Unit " + unit.id + " is lost (" + e.getMessage() + "), it goes back to the queue");
+				queue.addFirst(unit);
+			}
+			if (worker >= 0) {
+				stopWorker(worker);
+			}
+		}
+	}
+
+	//wait for a unit while other workers can still give theirs back. null if everything is done
+	private Unit nextUnit() throws InterruptedException {
+		while (true) {
+			Unit unit = queue.poll(200, TimeUnit.MILLISECONDS);
+			if (unit != null || isFinished()) {
+				return unit;
+			}
+		}
+	}
+
+	private synchronized void finish(Unit unit, long overallTime, long timeDelay) {
+		if (unit.overallTime < 0) {
+			unit.overallTime = overallTime;
+			unit.timeDelay = timeDelay;
+			finished++;
+			notifyAll();
+		}
+	}
+
+	//write all the results in one file
+	public void write(String path) throws IOException {
+		try (PrintWriter out = new PrintWriter(new FileWriter(path))) {
+			out.println("power,treshold,totalCars,replica,overallTime,timeDelay");
+			for (Unit unit : units) {
+				out.println(unit.power + "," + unit.treshold + "," + unit.totalCars + "," + unit.replica + ","
+						+ unit.overallTime + "," + unit.timeDelay);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 6) {
+			System.out.println("Usage: SweepCoordinator <output.csv> <workers> <powers> <tresholds> "
+					+ "<minCars>-<maxCars> <replicas> [scenario file]");
+			return;
+		}
+		String[] powerValues = args[2].split(",");
+		float[] powers = new float[powerValues.length];
+		for (int i = 0; i < powers.length; i++) {
+			powers[i] = Float.parseFloat(powerValues[i]);
+		}
+		String[] tresholdValues = args[3].split(",");
+		double[] tresholds = new double[tresholdValues.length];
+		for (int i = 0; i < tresholds.length; i++) {
+			tresholds[i] = Double.parseDouble(tresholdValues[i]);
+		}
+		String[] cars = args[4].split("-");
+
+		SweepCoordinator coordinator = new SweepCoordinator(powers, tresholds, Integer.parseInt(cars[0]),
+				Integer.parseInt(cars[1]), Integer.parseInt(args[5]), 2019, args.length > 6 ? args[6] : null);
+		coordinator.run(Integer.parseInt(args[1]), InetAddress.getLoopbackAddress(), "256m");
+		coordinator.write(args[0]);
+		System.out.println("Results are written in " + args[0]);
+	}
+}
@@ -0,0 +1,58 @@
+package cellmodel;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Random;
+
+/* SweepWorker
+ * A worker process of SweepCoordinator. It connects to the coordinator, takes work units one by one,
+ * runs every experiment without the screen and sends back overallTime and timeDelay.
+ *
+ * Protocol (one line per message):
+ *   worker:      READY [<worker id>]
+ *   coordinator: UNIT <id> <power> <treshold> <totalCars> <seed>  or  DONE
+ *   worker:      RESULT <id> <overallTime> <timeDelay>
+ *
+ * Start: java cellmodel.SweepWorker <host> <port> [scenario file]
+ * A worker started by the coordinator gets its id in the WORKER_ID environment variable,
+ * so the coordinator can stop the process if the worker hangs.
+ */
+
+public class SweepWorker {
+
+	//an experiment longer than this is stopped, its overallTime is this value
+	public static final int MAX_ITERATIONS = 100000;
+
+	public static final String WORKER_ID = "SWEEP_WORKER_ID";
+
+	public static void main(String[] args) throws IOException {
+		Scenario scenario = args.length > 2 ? Scenario.load(args[2]) : Scenario.crossroad(64, 64);
+
+		try (Socket socket = new Socket(args[0], Integer.parseInt(args[1]));
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+				PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+
+			String id = System.getenv(WORKER_ID);
+			out.println(id != null ? "READY " + id : "READY");
+			String line;
+			while ((line = in.readLine()) != null && line.startsWith("UNIT")) {
+				String[] unit = line.split(" ");
+				long[] result = experiment(scenario, Float.parseFloat(unit[2]), Double.parseDouble(unit[3]),
+						Integer.parseInt(unit[4]), Long.parseLong(unit[5]));
+				out.println("RESULT " + unit[1] + " " + result[0] + " " + result[1]);
+			}
+		}
+	}
+
+	//run one experiment until there are no cars. Returns overallTime and timeDelay
+	public static long[] experiment(Scenario scenario, float power, double treshold, int totalCars, long seed) {
+		CellularAutomaton ca = new CellularAutomaton(scenario, totalCars, power, treshold, new Random(seed), null);
+		while (!ca.stopped && ca.overallTime < MAX_ITERATIONS) {
+			ca.nextIteration();
+		}
+		return new long[] { ca.overallTime, ca.timeDelay };
+	}
+}
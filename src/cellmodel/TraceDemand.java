@@ -0,0 +1,114 @@
+package cellmodel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/* TraceDemand
+ * Replays an ArrivalTrace into the grid instead of placing cars at random.
+ * Every iteration it reads the arrivals up to the end of the iteration and puts a car
+ * at the entrance of the lane of every arrival.
+ * If the entrance cell is not free, the car waits outside of the grid and comes in as soon as the cell is free.
+ *
+ * Approaches of the trace are the lanes which start at the bounds of the grid and lead to the roadcrossing.
+ * They are numbered by the side of the grid the cars come from: first the lanes from the top, then from the left,
+ * from the right and from the bottom. Lanes from the same side are ordered by their first cell, row by row.
+ * For the classic crossroad it is: 0 - from the top, 1 - from the left, 2 - from the right, 3 - from the bottom.
+ */
+
+public class TraceDemand implements Closeable {
+
+	//directions (y, x) of the cars from the top, the left, the right and the bottom
+	private static final int[][] SIDES = { { 1, 0 }, { 0, 1 }, { 0, -1 }, { -1, 0 } };
+
+	private final ArrivalTrace trace;
+
+	//trace seconds per one iteration. 1 is real time, 2 replays the trace twice as fast
+	private final double timeScale;
+
+	//the first cell (y * width + x) of every approach lane
+	private final int[] entrances;
+
+	//cars which have arrived but can't come into the grid yet
+	private final int[] waiting;
+	private int totalWaiting = 0;
+
+	private int iteration = 0;
+	private double startTime;
+	private boolean hasRecord;
+
+	/* @trace is an opened arrival trace
+	 * @topology is a compiled scenario of the grid
+	 * @timeScale is how many trace seconds one iteration lasts, it must be positive
+	 */
+	public TraceDemand(ArrivalTrace trace, LaneTopology topology, double timeScale) throws IOException {
+		//otherwise the iterations never come to the arrivals and the trace never ends
+		if (!(timeScale > 0)) {
+			throw new IllegalArgumentException("timeScale must be positive, it is " + timeScale);
+		}
+		this.trace = trace;
+		this.timeScale = timeScale;
+		entrances = approachEntrances(topology);
+		waiting = new int[entrances.length];
+
+		hasRecord = trace.next();
+		startTime = hasRecord ? trace.getTime() : 0;
+	}
+
+	public static int[] approachEntrances(LaneTopology topology) {
+		ArrayList<Integer> entrances = new ArrayList<Integer>();
+		for (int[] side : SIDES) {
+			for (int lane = 0; lane < topology.laneCount; lane++) {
+				if (topology.laneEntrance[lane] && topology.laneStopLine[lane] >= 0
+						&& topology.laneDirY[lane] == side[0] && topology.laneDirX[lane] == side[1]) {
+					entrances.add(topology.laneCells[topology.laneOffset[lane]]);
+				}
+			}
+		}
+		int[] result = new int[entrances.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = entrances.get(i);
+		}
+		return result;
+	}
+
+	//put the cars which arrive during this iteration at the entrances
+	public void inject(CellularAutomaton ca) throws IOException {
+		double iterationEnd = startTime + (iteration + 1) * timeScale;
+		while (hasRecord && trace.getTime() < iterationEnd) {
+			int approach = trace.getApproach();
+			if (approach < 0 || approach >= entrances.length) {
+				throw new TraceException("There is no approach " + approach + " in the scenario");
+			}
+			waiting[approach]++;
+			totalWaiting++;
+			hasRecord = trace.next();
+		}
+		//the trace is over, the file is not needed anymore
+		if (!hasRecord) {
+			trace.close();
+		}
+
+		//one car per entrance per iteration
+		for (int approach = 0; approach < entrances.length; approach++) {
+			if (waiting[approach] > 0 && ca.addCar(entrances[approach])) {
+				waiting[approach]--;
+				totalWaiting--;
+			}
+		}
+		iteration++;
+	}
+
+	//no more arrivals in the trace and nobody is waiting
+	public boolean finished() {
+		return !hasRecord && totalWaiting == 0;
+	}
+
+	public int getWaiting() {
+		return totalWaiting;
+	}
+
+	public void close() throws IOException {
+		trace.close();
+	}
+}
@@ -0,0 +1,19 @@
+package cellmodel;
+
+/* TraceException
+ * A broken or unreadable arrival trace (see ArrivalTrace, TraceDemand).
+ * Unlike too many cars for the grid, it is not fixed by other parameters, so GridOfCells stops on it.
+ */
+
+public class TraceException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public TraceException(String message) {
+		super(message);
+	}
+
+	public TraceException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -0,0 +1,39 @@
+package cellmodel;
+
+/* TrafficEngine
+ * Anything that runs the model iteration by iteration.
+ * CellularAutomaton is the reference, other (faster) engines must give the same states (see DifferentialCheck).
+ */
+
+public interface TrafficEngine {
+
+	void nextIteration();
+
+	//true when the experiment is over
+	boolean isStopped();
+
+	/* Write the whole state into @state of snapshotSize(topology) ints:
+	 * for every cell (y * width + x) 0 if there is no vehicle, otherwise carCode(type, part, velocityY, velocityX),
+	 * and the ordinal of the traffic light state in the last element.
+	 */
+	void snapshot(int[] state);
+
+	static int snapshotSize(LaneTopology topology) {
+		return topology.height * topology.width + 1;
+	}
+
+	/* @type is the ordinal of the VehicleType, @part is the cell of the vehicle from its front (0) to its back.
+	 * A car is type 0 and part 0, so its code is the same as before vehicle types.
+	 * Velocities are less than 128 in absolute value, so the code is never 0
+	 */
+	static int carCode(int type, int part, int velocityY, int velocityX) {
+		return 1 + (part << 20 | type << 16 | (velocityY + 128) << 8 | (velocityX + 128));
+	}
+
+	/* Makes an engine for an experiment. An alternative engine is given to DifferentialCheck by the class name
+	 * of its factory, so the factory needs a constructor without arguments.
+	 */
+	interface Factory {
+		TrafficEngine create(Scenario scenario, int totalCars, float power, double treshold, Fleet fleet, long seed);
+	}
+}
@@ -0,0 +1,18 @@
+package cellmodel;
+
+//Kinds of vehicles: maximum speed (cells per iteration), length (cells), acceleration (per iteration)
+public enum VehicleType {
+	CAR(4, 1, 1),
+	TRUCK(2, 2, 1),
+	BUS(3, 3, 1);
+
+	final int maxSpeed;
+	final int length;
+	final int acceleration;
+
+	VehicleType(int maxSpeed, int length, int acceleration) {
+		this.maxSpeed = maxSpeed;
+		this.length = length;
+		this.acceleration = acceleration;
+	}
+}